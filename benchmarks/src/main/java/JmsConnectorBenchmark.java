@@ -0,0 +1,166 @@
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.jms.Message;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the JmsConnector send / receive paths, against an embedded, non-persistent ActiveMQ broker
+ * reached either in-VM (vm://) or over loopback TCP.
+ * JmsConnector isn't thread-safe, so every benchmark runs single-threaded.
+ *
+ * Run with: java -jar target/benchmarks.jar
+ * That reports throughput (ops/s) first, then latency percentiles (us). Any JMH command line options are passed on,
+ * e.g. "java -jar target/benchmarks.jar sendTextMessage -p transport=tcp".
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JmsConnectorBenchmark {
+
+    private static final String BROKER_NAME = "bench";
+
+    @Param({ "vm", "tcp" })
+    public String transport;
+
+    private BrokerService broker;
+    private String jmsUrl;
+
+    // Sends to "bench.send", which [drain] keeps empty so the broker never throttles us.
+    private JmsConnector sender;
+    private JmsConnector drain;
+
+    // Sends to and consumes from "bench.roundtrip".
+    private JmsConnector roundTrip;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        broker = new BrokerService();
+        broker.setBrokerName(BROKER_NAME);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        TransportConnector tcp = broker.addConnector("tcp://localhost:0");
+        broker.start();
+        broker.waitUntilStarted();
+
+        jmsUrl = "vm".equals(transport)
+            ? "vm://" + BROKER_NAME + "?create=false"
+            : tcp.getConnectUri().toString();
+
+        sender = new JmsConnector(jmsUrl, "bench.send");
+        roundTrip = new JmsConnector(jmsUrl, "bench.roundtrip");
+
+        drain = new JmsConnector(jmsUrl, "bench.send");
+        drain.listen(msg -> { }, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sender.close();
+        roundTrip.close();
+        drain.close();
+        JmsConnectionPool.getInstance().closeAll();
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Benchmark
+    public void sendTextMessage() throws Exception {
+        sender.sendTextMessage("This is a text message!!");
+    }
+
+    @Benchmark
+    public void sendMapMessage() throws Exception {
+        sender.startMapMessage()
+            .addMapString("name", "luke")
+            .addMapInt("age", 29)
+            .sendMapMessage();
+    }
+
+    /**
+     * A send followed by a blocking consume().
+     */
+    @Benchmark
+    public Message sendAndConsume() throws Exception {
+        roundTrip.sendTextMessage("This is a text message!!");
+        return roundTrip.consume();
+    }
+
+    /**
+     * A send followed by polling consumeNoWait() until the message has been dispatched to us.
+     */
+    @Benchmark
+    public Message sendAndConsumeNoWait() throws Exception {
+
+        roundTrip.sendTextMessage("This is a text message!!");
+
+        Message msg;
+        do {
+            msg = roundTrip.consumeNoWait();
+        } while (msg == null);
+
+        return msg;
+    }
+
+    /**
+     * The cost of a short-lived connector: construct, send one message, close().
+     */
+    @Benchmark
+    public void connectorOpenSendClose() throws Exception {
+
+        JmsConnector jmsConn = new JmsConnector(jmsUrl, "bench.send");
+
+        try {
+            jmsConn.sendTextMessage("This is a text message!!");
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Runs every benchmark twice: once for throughput in ops/s, once for latency percentiles in microseconds.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+
+        CommandLineOptions cmdLine = new CommandLineOptions(args);
+
+        new Runner(options(cmdLine, Mode.Throughput, TimeUnit.SECONDS)).run();
+        new Runner(options(cmdLine, Mode.SampleTime, TimeUnit.MICROSECONDS)).run();
+    }
+
+    private static Options options(CommandLineOptions cmdLine, Mode mode, TimeUnit timeUnit) {
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .parent(cmdLine)
+            .mode(mode)
+            .timeUnit(timeUnit);
+
+        // Run everything in this class, unless benchmarks were picked on the command line.
+        if (cmdLine.getIncludes().isEmpty()) {
+            builder.include(JmsConnectorBenchmark.class.getSimpleName());
+        }
+
+        return builder.build();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Picks a consumer prefetch size from how long the caller takes to process each message, so that roughly
+ * [targetBufferMillis] worth of work is buffered client-side: slow consumers stop hoarding messages other
+ * consumers could be working on, and fast consumers aren't starved waiting on the broker.
+ *
+ * Processing time is measured from when consume() returns a message to when it's called again.
+ * Not thread-safe - each JmsConnector has its own.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class AdaptivePrefetch {
+
+    // How many messages to measure between resize decisions.
+    private static final int SAMPLES_PER_DECISION = 100;
+
+    // Weight of the newest sample in the moving average.
+    private static final double SMOOTHING = 0.1;
+
+    private final long targetBufferNanos;
+    private final int maxPrefetch;
+
+    private double avgProcessingNanos = -1;
+    private long lastReturnedNanos;
+    private int samples;
+
+    /**
+     * @param targetBufferMillis how much work (in processing time) to keep prefetched
+     * @param maxPrefetch upper bound for the prefetch size
+     */
+    public AdaptivePrefetch(long targetBufferMillis, int maxPrefetch) {
+
+        if (targetBufferMillis < 1 || maxPrefetch < 1) {
+            throw new IllegalArgumentException("targetBufferMillis and maxPrefetch must be at least 1.");
+        }
+
+        this.targetBufferNanos = targetBufferMillis * 1000000L;
+        this.maxPrefetch = maxPrefetch;
+    }
+
+    /**
+     * Call before each receive - closes the measurement for the previously returned message.
+     */
+    public void beforeReceive() {
+
+        if (lastReturnedNanos == 0) {
+            return;
+        }
+
+        long processingNanos = System.nanoTime() - lastReturnedNanos;
+        lastReturnedNanos = 0;
+
+        avgProcessingNanos = avgProcessingNanos < 0
+            ? processingNanos
+            : avgProcessingNanos + SMOOTHING * (processingNanos - avgProcessingNanos);
+
+        samples++;
+    }
+
+    /**
+     * Call after each receive.
+     */
+    public void afterReceive(boolean gotMessage) {
+        if (gotMessage) {
+            lastReturnedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The prefetch size to use from now on. Only changes once enough samples were taken, and only if the ideal
+     * size is at least twice as big (or small) as [currentPrefetch] - resizing means recreating the consumer.
+     */
+    public int suggestPrefetch(int currentPrefetch) {
+
+        if (samples < SAMPLES_PER_DECISION) {
+            return currentPrefetch;
+        }
+
+        samples = 0;
+
+        long ideal = avgProcessingNanos < 1 ? maxPrefetch : (long) (targetBufferNanos / avgProcessingNanos);
+        int target = (int) Math.max(1, Math.min(maxPrefetch, ideal));
+
+        if (target >= currentPrefetch * 2L || target * 2L <= currentPrefetch) {
+            return target;
+        }
+
+        return currentPrefetch;
+    }
+}
@@ -0,0 +1,107 @@
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A JMS session kept alive by its PooledConnection between borrowers, together with
+ * an LRU cache of the producers created on it (one per destination).
+ * Only one JmsConnector uses a CachedSession at a time, so none of this is synchronized.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class CachedSession {
+
+    private final Session session;
+    private final boolean transacted;
+    private final int ackMode;
+    private final Map<Destination, MessageProducer> producers;
+
+    CachedSession(Session session, boolean transacted, int ackMode, final int maxProducers) {
+
+        this.session = session;
+        this.transacted = transacted;
+        this.ackMode = ackMode;
+
+        // Access-ordered, so the least recently used producer is evicted (and closed) first.
+        this.producers = new LinkedHashMap<Destination, MessageProducer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Destination, MessageProducer> eldest) {
+                if (size() > maxProducers) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public boolean isTransacted() {
+        return transacted;
+    }
+
+    public int getAckMode() {
+        return ackMode;
+    }
+
+    /**
+     * Get the cached producer for this destination, creating it on first use.
+     * Don't close the returned producer - it belongs to the cache.
+     */
+    public MessageProducer getProducer(Destination destination) throws JMSException {
+
+        MessageProducer producer = producers.get(destination);
+
+        if (producer == null) {
+            producer = session.createProducer(destination);
+            producers.put(destination, producer);
+        }
+
+        return producer;
+    }
+
+    /**
+     * Put the session back into a clean state before handing it to the next borrower.
+     * Uncommitted / unacknowledged work from the previous borrower is rolled back.
+     */
+    void reset() throws JMSException {
+
+        if (transacted) {
+            session.rollback();
+        } else if (ackMode == Session.CLIENT_ACKNOWLEDGE) {
+            session.recover();
+        }
+    }
+
+    /**
+     * Quietly close the producers and the session.
+     */
+    void closeQuietly() {
+
+        for (MessageProducer producer : producers.values()) {
+            closeQuietly(producer);
+        }
+
+        producers.clear();
+
+        try {
+            session.close();
+        } catch (Exception e) {
+            // Ignore.
+        }
+    }
+
+    private static void closeQuietly(MessageProducer producer) {
+        try {
+            producer.close();
+        } catch (Exception e) {
+            // Ignore.
+        }
+    }
+}
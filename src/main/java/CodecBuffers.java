@@ -0,0 +1,167 @@
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageFormatException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Per-thread buffers reused by the binary codecs and compression, so encoding and decoding don't allocate a fresh
+ * array per message. A buffer is only valid until the next call for it on the same thread.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+final class CodecBuffers {
+
+    // Buffers that had to grow past this are dropped after use, so one huge message doesn't pin memory forever.
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    /**
+     * A ByteArrayOutputStream that can hand its contents to a BytesMessage without toByteArray()'s copy.
+     */
+    static final class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(8192);
+        }
+
+        void writeTo(BytesMessage msg) throws JMSException {
+            msg.writeBytes(buf, 0, count);
+        }
+
+        /**
+         * The backing array - the contents are the first size() bytes.
+         */
+        byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Append the remaining bytes of [bytes], leaving its position alone.
+         */
+        void write(ByteBuffer bytes) {
+            ensureSpace(bytes.remaining());
+            bytes.duplicate().get(buf, count, bytes.remaining());
+            count += bytes.remaining();
+        }
+
+        /**
+         * Append [text] as UTF-8, without going through a temporary byte array.
+         */
+        void writeUtf8(String text) {
+
+            ensureSpace((int) Math.min(Integer.MAX_VALUE - count, text.length() * 3L));
+
+            ByteBuffer target = ByteBuffer.wrap(buf, count, buf.length - count);
+            CharsetEncoder encoder = ENCODER.get().reset();
+            encoder.encode(CharBuffer.wrap(text), target, true);
+            encoder.flush(target);
+            count = target.position();
+        }
+
+        private void ensureSpace(int bytes) {
+            if (buf.length - count < bytes) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes));
+            }
+        }
+    }
+
+    /**
+     * A ByteArrayInputStream whose backing array can be handed to a decompressor as is.
+     */
+    static final class Input extends ByteArrayInputStream {
+
+        Input(byte[] buf, int length) {
+            super(buf, 0, length);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        int length() {
+            return count;
+        }
+    }
+
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+    private static final ThreadLocal<Output> SPARE_OUTPUT = ThreadLocal.withInitial(Output::new);
+    private static final ThreadLocal<byte[]> INPUT = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    // Like String.getBytes(), malformed text is replaced rather than rejected.
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() ->
+        StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private CodecBuffers() {
+    }
+
+    /**
+     * This thread's (emptied) output buffer. Hand it back with release() when done.
+     */
+    static Output output() {
+        Output out = OUTPUT.get();
+        out.reset();
+        return out;
+    }
+
+    /**
+     * A second output buffer, for when one is being read from while writing another - e.g. compressing.
+     */
+    static Output spareOutput() {
+        Output out = SPARE_OUTPUT.get();
+        out.reset();
+        return out;
+    }
+
+    static void release(Output out) {
+        if (out.array().length > MAX_RETAINED_SIZE) {
+            if (out == OUTPUT.get()) {
+                OUTPUT.remove();
+            } else {
+                SPARE_OUTPUT.remove();
+            }
+        }
+    }
+
+    /**
+     * The whole body of [msg], read into this thread's input buffer.
+     */
+    static Input input(BytesMessage msg) throws JMSException {
+
+        long length = msg.getBodyLength();
+
+        if (length > Integer.MAX_VALUE) {
+            throw new MessageFormatException("Message body is too big to decode: " + length + " bytes.");
+        }
+
+        byte[] buf = INPUT.get();
+
+        if (buf.length < length) {
+
+            buf = new byte[(int) length];
+
+            if (length <= MAX_RETAINED_SIZE) {
+                INPUT.set(buf);
+            }
+        }
+
+        int read = length == 0 ? 0 : msg.readBytes(buf, (int) length);
+        return new Input(buf, Math.max(0, read));
+    }
+
+    /**
+     * A MessageFormatException for a codec failure, linked to its cause.
+     */
+    static MessageFormatException formatException(String message, Exception cause) {
+        MessageFormatException e = new MessageFormatException(message + ": " + cause);
+        e.setLinkedException(cause);
+        return e;
+    }
+}
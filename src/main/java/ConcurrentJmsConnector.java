@@ -0,0 +1,226 @@
+import javax.jms.JMSException;
+import javax.naming.NamingException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A thread-safe producer facade over JmsConnector, meant to be shared by many threads.
+ * Sends are spread over a fixed number of stripes - each stripe is a JmsConnector with its own session and
+ * producer, borrowed from the same pooled connection, and guarded by its own lock. Threads only contend when
+ * they land on the same stripe.
+ *
+ * Map messages are built with the standalone JmsMapMessage.builder(), since the startMapMessage() builder keeps
+ * state in the connector.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class ConcurrentJmsConnector {
+
+    private final JmsConnector[] stripes;
+
+    /**
+     * Look up the JMS URL and queue name from jndi.properties, with one stripe per CPU.
+     *
+     * @param jmsQueueName in jndi.properties, if "queue.MyQueue = myqueue" is defined, this should be "MyQueue".
+     */
+    public ConcurrentJmsConnector(String jmsQueueName) {
+        this(jmsQueueName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Look up the JMS URL and queue name from jndi.properties.
+     */
+    public ConcurrentJmsConnector(String jmsQueueName, int stripeCount) {
+
+        stripes = new JmsConnector[checkStripeCount(stripeCount)];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new JmsConnector(jmsQueueName);
+        }
+    }
+
+    /**
+     * Specify the JMS URL and queue name directly, with one stripe per CPU.
+     *
+     * @param jmsUrl e.g. "tcp://localhost:61616"
+     * @param jmsQueueName e.g. "users" or whatever direct queue name shows up in ActiveMQ
+     */
+    public ConcurrentJmsConnector(String jmsUrl, String jmsQueueName) {
+        this(jmsUrl, jmsQueueName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Specify the JMS URL and queue name directly.
+     */
+    public ConcurrentJmsConnector(String jmsUrl, String jmsQueueName, int stripeCount) {
+
+        stripes = new JmsConnector[checkStripeCount(stripeCount)];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new JmsConnector(jmsUrl, jmsQueueName);
+        }
+    }
+
+    private static int checkStripeCount(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be at least 1: " + stripeCount);
+        }
+        return stripeCount;
+    }
+
+    /**
+     * The stripe used by the calling thread. Threads always map to the same stripe.
+     */
+    protected JmsConnector stripe() {
+        return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    }
+
+    /**
+     * See JmsConnector.setDeliveryMode(). Applies to every stripe.
+     */
+    public ConcurrentJmsConnector setDeliveryMode(int deliveryMode) {
+        for (JmsConnector stripe : stripes) {
+            synchronized (stripe) {
+                stripe.setDeliveryMode(deliveryMode);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * See JmsConnector.setPriority(). Applies to every stripe.
+     */
+    public ConcurrentJmsConnector setPriority(int priority) {
+        for (JmsConnector stripe : stripes) {
+            synchronized (stripe) {
+                stripe.setPriority(priority);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * See JmsConnector.setTimeToLive(). Applies to every stripe.
+     */
+    public ConcurrentJmsConnector setTimeToLive(long timeToLive) {
+        for (JmsConnector stripe : stripes) {
+            synchronized (stripe) {
+                stripe.setTimeToLive(timeToLive);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * See JmsConnector.setReconnectPolicy(). Applies to every stripe.
+     */
+    public ConcurrentJmsConnector setReconnectPolicy(JmsReconnectPolicy reconnectPolicy) {
+        for (JmsConnector stripe : stripes) {
+            synchronized (stripe) {
+                stripe.setReconnectPolicy(reconnectPolicy);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * See JmsConnector.setMessageProperty(). Applies to every stripe.
+     */
+    public ConcurrentJmsConnector setMessageProperty(String name, Object value) {
+        for (JmsConnector stripe : stripes) {
+            synchronized (stripe) {
+                stripe.setMessageProperty(name, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * See JmsConnector.asTopic(). Applies to every stripe.
+     */
+    public ConcurrentJmsConnector asTopic() {
+        for (JmsConnector stripe : stripes) {
+            synchronized (stripe) {
+                stripe.asTopic();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Send a text message over the queue.
+     */
+    public void sendTextMessage(String text) throws NamingException, JMSException {
+        JmsConnector stripe = stripe();
+        synchronized (stripe) {
+            stripe.sendTextMessage(text);
+        }
+    }
+
+    /**
+     * Send a text message over the queue, overriding the delivery mode, priority and time-to-live.
+     */
+    public void sendTextMessage(String text, int deliveryMode, int priority, long timeToLive)
+        throws NamingException, JMSException {
+
+        JmsConnector stripe = stripe();
+        synchronized (stripe) {
+            stripe.sendTextMessage(text, deliveryMode, priority, timeToLive);
+        }
+    }
+
+    /**
+     * See JmsConnector.sendTextMessages().
+     */
+    public int sendTextMessages(Collection<String> texts) throws NamingException, JMSException {
+        JmsConnector stripe = stripe();
+        synchronized (stripe) {
+            return stripe.sendTextMessages(texts);
+        }
+    }
+
+    /**
+     * See JmsConnector.sendTextMessageAsync(). The lock is only held while the send is queued.
+     */
+    public CompletableFuture<Void> sendTextMessageAsync(String text) throws NamingException, JMSException {
+        JmsConnector stripe = stripe();
+        synchronized (stripe) {
+            return stripe.sendTextMessageAsync(text);
+        }
+    }
+
+    /**
+     * Send a map message over the queue.
+     * Example usage: sendMapMessage(JmsMapMessage.builder().addString("name", "luke").build());
+     */
+    public void sendMapMessage(JmsMapMessage map) throws NamingException, JMSException {
+        JmsConnector stripe = stripe();
+        synchronized (stripe) {
+            stripe.sendMapMessage(map);
+        }
+    }
+
+    /**
+     * Send a map message over the queue, overriding the delivery mode, priority and time-to-live.
+     */
+    public void sendMapMessage(JmsMapMessage map, int deliveryMode, int priority, long timeToLive)
+        throws NamingException, JMSException {
+
+        JmsConnector stripe = stripe();
+        synchronized (stripe) {
+            stripe.sendMapMessage(map, deliveryMode, priority, timeToLive);
+        }
+    }
+
+    /**
+     * Must finally call this to clean up resources. Waits for sends in progress on other threads.
+     * This method is idempotent.
+     */
+    public void close() {
+        for (JmsConnector stripe : stripes) {
+            synchronized (stripe) {
+                stripe.close();
+            }
+        }
+    }
+}
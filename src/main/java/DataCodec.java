@@ -0,0 +1,86 @@
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageFormatException;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+
+/**
+ * Encodes objects that write their own fields to a DataOutput - compact and fast, with no reflection over fields
+ * and no class metadata on the wire. Classes implement DataCodec.Writable and have a no-arg constructor.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class DataCodec implements MessageCodec {
+
+    /**
+     * An object that can write itself out, and read itself back into a new instance.
+     */
+    public interface Writable {
+
+        void write(DataOutput out) throws IOException;
+
+        void read(DataInput in) throws IOException;
+    }
+
+    // Looked up once per class.
+    private static final ClassValue<Constructor<?>> CONSTRUCTORS = new ClassValue<Constructor<?>>() {
+        @Override
+        protected Constructor<?> computeValue(Class<?> type) {
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+
+    @Override
+    public String getName() {
+        return "data";
+    }
+
+    @Override
+    public void encode(Object obj, BytesMessage msg) throws JMSException {
+
+        if (!(obj instanceof Writable)) {
+            throw new MessageFormatException(obj.getClass().getName() + " doesn't implement DataCodec.Writable.");
+        }
+
+        CodecBuffers.Output out = CodecBuffers.output();
+
+        try {
+            DataOutputStream dataOut = new DataOutputStream(out);
+            ((Writable) obj).write(dataOut);
+            dataOut.flush();
+        } catch (IOException e) {
+            throw CodecBuffers.formatException("Couldn't write " + obj.getClass().getName(), e);
+        }
+
+        out.writeTo(msg);
+        CodecBuffers.release(out);
+    }
+
+    @Override
+    public <T> T decode(BytesMessage msg, Class<T> type) throws JMSException {
+
+        Constructor<?> constructor = CONSTRUCTORS.get(type);
+
+        if (!Writable.class.isAssignableFrom(type) || constructor == null) {
+            throw new MessageFormatException(type.getName() + " must implement DataCodec.Writable and have a no-arg constructor.");
+        }
+
+        try {
+            T obj = type.cast(constructor.newInstance());
+            ((Writable) obj).read(new DataInputStream(CodecBuffers.input(msg)));
+            return obj;
+        } catch (IOException | ReflectiveOperationException e) {
+            throw CodecBuffers.formatException("Couldn't read a " + type.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,502 @@
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.TextMessage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Enumeration;
+
+/**
+ * What consume() hands back for a message compressed by the sender: the decompressed body, in front of the
+ * original message. Headers, properties and acknowledge() all go to the original, so acknowledging works as usual.
+ * The body is read-only, like any received message's.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+abstract class DecompressedMessage implements Message {
+
+    protected final Message original;
+
+    DecompressedMessage(Message original) {
+        this.original = original;
+    }
+
+    /**
+     * The message as it came off the wire.
+     */
+    public Message getOriginal() {
+        return original;
+    }
+
+    protected static MessageNotWriteableException readOnly() {
+        return new MessageNotWriteableException("Received message bodies are read-only.");
+    }
+
+    /**
+     * A compressed TextMessage.
+     */
+    static final class Text extends DecompressedMessage implements TextMessage {
+
+        private final String text;
+
+        Text(Message original, String text) {
+            super(original);
+            this.text = text;
+        }
+
+        @Override
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public void setText(String text) throws JMSException {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * A compressed BytesMessage.
+     */
+    static final class Bytes extends DecompressedMessage implements BytesMessage {
+
+        private final byte[] body;
+        private DataInputStream in;
+
+        Bytes(Message original, byte[] body) {
+            super(original);
+            this.body = body;
+            reset();
+        }
+
+        @Override
+        public long getBodyLength() {
+            return body.length;
+        }
+
+        @Override
+        public void reset() {
+            in = new DataInputStream(new ByteArrayInputStream(body));
+        }
+
+        @Override
+        public int readBytes(byte[] value) throws JMSException {
+            return readBytes(value, value.length);
+        }
+
+        @Override
+        public int readBytes(byte[] value, int length) throws JMSException {
+            try {
+                return length == 0 ? 0 : in.read(value, 0, length);
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public boolean readBoolean() throws JMSException {
+            try {
+                return in.readBoolean();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public byte readByte() throws JMSException {
+            try {
+                return in.readByte();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public int readUnsignedByte() throws JMSException {
+            try {
+                return in.readUnsignedByte();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public short readShort() throws JMSException {
+            try {
+                return in.readShort();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public int readUnsignedShort() throws JMSException {
+            try {
+                return in.readUnsignedShort();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public char readChar() throws JMSException {
+            try {
+                return in.readChar();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public int readInt() throws JMSException {
+            try {
+                return in.readInt();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public long readLong() throws JMSException {
+            try {
+                return in.readLong();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public float readFloat() throws JMSException {
+            try {
+                return in.readFloat();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public double readDouble() throws JMSException {
+            try {
+                return in.readDouble();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        @Override
+        public String readUTF() throws JMSException {
+            try {
+                return in.readUTF();
+            } catch (IOException e) {
+                throw readFailed(e);
+            }
+        }
+
+        private static JMSException readFailed(IOException e) {
+
+            JMSException jmsE = e instanceof EOFException
+                ? new MessageEOFException("Reached the end of the message body.")
+                : new JMSException("Couldn't read the message body: " + e);
+
+            jmsE.setLinkedException(e);
+            return jmsE;
+        }
+
+        @Override
+        public void writeBoolean(boolean value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeByte(byte value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeShort(short value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeChar(char value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeInt(int value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeLong(long value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeFloat(float value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeDouble(double value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeUTF(String value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeBytes(byte[] value) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeBytes(byte[] value, int offset, int length) throws JMSException {
+            throw readOnly();
+        }
+
+        @Override
+        public void writeObject(Object value) throws JMSException {
+            throw readOnly();
+        }
+    }
+
+    // Everything else is the original's:
+
+    @Override
+    public String getJMSMessageID() throws JMSException {
+        return original.getJMSMessageID();
+    }
+
+    @Override
+    public void setJMSMessageID(String id) throws JMSException {
+        original.setJMSMessageID(id);
+    }
+
+    @Override
+    public long getJMSTimestamp() throws JMSException {
+        return original.getJMSTimestamp();
+    }
+
+    @Override
+    public void setJMSTimestamp(long timestamp) throws JMSException {
+        original.setJMSTimestamp(timestamp);
+    }
+
+    @Override
+    public byte[] getJMSCorrelationIDAsBytes() throws JMSException {
+        return original.getJMSCorrelationIDAsBytes();
+    }
+
+    @Override
+    public void setJMSCorrelationIDAsBytes(byte[] correlationID) throws JMSException {
+        original.setJMSCorrelationIDAsBytes(correlationID);
+    }
+
+    @Override
+    public void setJMSCorrelationID(String correlationID) throws JMSException {
+        original.setJMSCorrelationID(correlationID);
+    }
+
+    @Override
+    public String getJMSCorrelationID() throws JMSException {
+        return original.getJMSCorrelationID();
+    }
+
+    @Override
+    public Destination getJMSReplyTo() throws JMSException {
+        return original.getJMSReplyTo();
+    }
+
+    @Override
+    public void setJMSReplyTo(Destination replyTo) throws JMSException {
+        original.setJMSReplyTo(replyTo);
+    }
+
+    @Override
+    public Destination getJMSDestination() throws JMSException {
+        return original.getJMSDestination();
+    }
+
+    @Override
+    public void setJMSDestination(Destination destination) throws JMSException {
+        original.setJMSDestination(destination);
+    }
+
+    @Override
+    public int getJMSDeliveryMode() throws JMSException {
+        return original.getJMSDeliveryMode();
+    }
+
+    @Override
+    public void setJMSDeliveryMode(int deliveryMode) throws JMSException {
+        original.setJMSDeliveryMode(deliveryMode);
+    }
+
+    @Override
+    public boolean getJMSRedelivered() throws JMSException {
+        return original.getJMSRedelivered();
+    }
+
+    @Override
+    public void setJMSRedelivered(boolean redelivered) throws JMSException {
+        original.setJMSRedelivered(redelivered);
+    }
+
+    @Override
+    public String getJMSType() throws JMSException {
+        return original.getJMSType();
+    }
+
+    @Override
+    public void setJMSType(String type) throws JMSException {
+        original.setJMSType(type);
+    }
+
+    @Override
+    public long getJMSExpiration() throws JMSException {
+        return original.getJMSExpiration();
+    }
+
+    @Override
+    public void setJMSExpiration(long expiration) throws JMSException {
+        original.setJMSExpiration(expiration);
+    }
+
+    @Override
+    public int getJMSPriority() throws JMSException {
+        return original.getJMSPriority();
+    }
+
+    @Override
+    public void setJMSPriority(int priority) throws JMSException {
+        original.setJMSPriority(priority);
+    }
+
+    @Override
+    public void clearProperties() throws JMSException {
+        original.clearProperties();
+    }
+
+    @Override
+    public boolean propertyExists(String name) throws JMSException {
+        return original.propertyExists(name);
+    }
+
+    @Override
+    public boolean getBooleanProperty(String name) throws JMSException {
+        return original.getBooleanProperty(name);
+    }
+
+    @Override
+    public byte getByteProperty(String name) throws JMSException {
+        return original.getByteProperty(name);
+    }
+
+    @Override
+    public short getShortProperty(String name) throws JMSException {
+        return original.getShortProperty(name);
+    }
+
+    @Override
+    public int getIntProperty(String name) throws JMSException {
+        return original.getIntProperty(name);
+    }
+
+    @Override
+    public long getLongProperty(String name) throws JMSException {
+        return original.getLongProperty(name);
+    }
+
+    @Override
+    public float getFloatProperty(String name) throws JMSException {
+        return original.getFloatProperty(name);
+    }
+
+    @Override
+    public double getDoubleProperty(String name) throws JMSException {
+        return original.getDoubleProperty(name);
+    }
+
+    @Override
+    public String getStringProperty(String name) throws JMSException {
+        return original.getStringProperty(name);
+    }
+
+    @Override
+    public Object getObjectProperty(String name) throws JMSException {
+        return original.getObjectProperty(name);
+    }
+
+    @Override
+    public Enumeration getPropertyNames() throws JMSException {
+        return original.getPropertyNames();
+    }
+
+    @Override
+    public void setBooleanProperty(String name, boolean value) throws JMSException {
+        original.setBooleanProperty(name, value);
+    }
+
+    @Override
+    public void setByteProperty(String name, byte value) throws JMSException {
+        original.setByteProperty(name, value);
+    }
+
+    @Override
+    public void setShortProperty(String name, short value) throws JMSException {
+        original.setShortProperty(name, value);
+    }
+
+    @Override
+    public void setIntProperty(String name, int value) throws JMSException {
+        original.setIntProperty(name, value);
+    }
+
+    @Override
+    public void setLongProperty(String name, long value) throws JMSException {
+        original.setLongProperty(name, value);
+    }
+
+    @Override
+    public void setFloatProperty(String name, float value) throws JMSException {
+        original.setFloatProperty(name, value);
+    }
+
+    @Override
+    public void setDoubleProperty(String name, double value) throws JMSException {
+        original.setDoubleProperty(name, value);
+    }
+
+    @Override
+    public void setStringProperty(String name, String value) throws JMSException {
+        original.setStringProperty(name, value);
+    }
+
+    @Override
+    public void setObjectProperty(String name, Object value) throws JMSException {
+        original.setObjectProperty(name, value);
+    }
+
+    @Override
+    public void acknowledge() throws JMSException {
+        original.acknowledge();
+    }
+
+    @Override
+    public void clearBody() throws JMSException {
+        throw readOnly();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + original + "]";
+    }
+}
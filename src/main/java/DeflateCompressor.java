@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate (zlib) compression, from the JDK. Each thread keeps its own Deflater / Inflater and is reset between
+ * messages, rather than allocating new ones (and their native buffers) per message. Deflaters are shared by every
+ * compressor with the same level, so creating compressors doesn't pile up native memory.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class DeflateCompressor implements MessageCompressor {
+
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    // One per level, from Deflater.DEFAULT_COMPRESSION (-1) to Deflater.BEST_COMPRESSION (9):
+    private static final ThreadLocal<Deflater>[] DEFLATERS = newDeflaters();
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    @SuppressWarnings("unchecked")
+    private static ThreadLocal<Deflater>[] newDeflaters() {
+
+        ThreadLocal<Deflater>[] deflaters = new ThreadLocal[Deflater.BEST_COMPRESSION + 2];
+
+        for (int i = 0; i < deflaters.length; i++) {
+            final int level = i - 1;
+            deflaters[i] = ThreadLocal.withInitial(() -> new Deflater(level));
+        }
+
+        return deflaters;
+    }
+
+    /**
+     * Favors speed over size, since it sits in the send path.
+     */
+    public DeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), or Deflater.DEFAULT_COMPRESSION (-1)
+     */
+    public DeflateCompressor(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between -1 and 9: " + level);
+        }
+        deflaters = DEFLATERS[level + 1];
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public void compress(byte[] data, int offset, int length, OutputStream out) throws IOException {
+
+        Deflater deflater = deflaters.get();
+        byte[] chunk = CHUNKS.get();
+
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            int compressed = deflater.deflate(chunk);
+            out.write(chunk, 0, compressed);
+        }
+    }
+
+    @Override
+    public void decompress(byte[] data, int offset, int length, OutputStream out) throws IOException {
+
+        Inflater inflater = INFLATERS.get();
+        byte[] chunk = CHUNKS.get();
+
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+
+        try {
+
+            while (!inflater.finished()) {
+
+                int inflated = inflater.inflate(chunk);
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed data is truncated.");
+                }
+
+                out.write(chunk, 0, inflated);
+            }
+
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed data is corrupt.", e);
+        }
+    }
+}
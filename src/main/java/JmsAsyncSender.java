@@ -0,0 +1,162 @@
+import javax.jms.JMSException;
+import javax.jms.Session;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends messages for one JmsConnector off the caller's thread.
+ * Sends run one at a time, in submission order, on a process-wide daemon thread pool, using a session
+ * borrowed just for async sends (JMS sessions are single-threaded). At most [windowSize] sends may be
+ * pending at once - beyond that, callers block until the broker catches up.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsAsyncSender {
+
+    /**
+     * Creates and sends one message, using the sender's own session and its cached producers.
+     */
+    public interface SendTask {
+        void send(CachedSession session) throws JMSException;
+    }
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final ExecutorService THREADS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "JmsAsyncSender-" + THREAD_COUNT.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PooledConnection pooledConnection;
+    private final int windowSize;
+    private final Semaphore window;
+
+    // Guarded by itself. [draining] is true while a pool thread is working through the queue.
+    private final Deque<Runnable> tasks = new ArrayDeque<>();
+    private boolean draining;
+
+    // Only touched from the draining thread.
+    private CachedSession cachedSession;
+
+    JmsAsyncSender(PooledConnection pooledConnection, int windowSize) {
+        this.pooledConnection = pooledConnection;
+        this.windowSize = windowSize;
+        this.window = new Semaphore(windowSize);
+    }
+
+    /**
+     * Queue a message for sending. The future completes once the broker has accepted the message,
+     * or completes exceptionally with the JMSException that made the send fail.
+     * Blocks while the send window is full.
+     */
+    public CompletableFuture<Void> send(SendTask task) {
+        window.acquireUninterruptibly();
+        return enqueueSend(task);
+    }
+
+    /**
+     * Like send(), but returns null instead of blocking if the send window is full.
+     */
+    public CompletableFuture<Void> trySend(SendTask task) {
+        return window.tryAcquire() ? enqueueSend(task) : null;
+    }
+
+    /**
+     * Queue a send the caller already holds a window permit for.
+     */
+    private CompletableFuture<Void> enqueueSend(SendTask task) {
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        enqueue(() -> {
+            try {
+                if (cachedSession == null) {
+                    cachedSession = pooledConnection.borrowSession(false, Session.AUTO_ACKNOWLEDGE);
+                }
+
+                task.send(cachedSession);
+                future.complete(null);
+
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            } finally {
+                window.release();
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Number of sends queued or in progress.
+     */
+    public int getPendingCount() {
+        return windowSize - window.availablePermits();
+    }
+
+    /**
+     * Wait for every pending send to finish, then give the session back to the connection.
+     */
+    void close() {
+
+        CountDownLatch closed = new CountDownLatch(1);
+
+        enqueue(() -> {
+            if (cachedSession != null) {
+                pooledConnection.releaseSession(cachedSession);
+                cachedSession = null;
+            }
+            closed.countDown();
+        });
+
+        try {
+            closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run tasks one at a time, in order, without tying up a thread while there's nothing to do.
+     */
+    private void enqueue(Runnable task) {
+
+        synchronized (tasks) {
+
+            tasks.add(task);
+
+            if (draining) {
+                return;
+            }
+
+            draining = true;
+        }
+
+        THREADS.execute(this::drain);
+    }
+
+    private void drain() {
+
+        while (true) {
+
+            Runnable task;
+
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    draining = false;
+                    return;
+                }
+            }
+
+            task.run();
+        }
+    }
+}
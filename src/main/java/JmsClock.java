@@ -0,0 +1,63 @@
+/**
+ * A wall clock with microsecond resolution, used to stamp sends and measure how long messages sat in the queue.
+ *
+ * System.currentTimeMillis() is too coarse for that, and System.nanoTime() can't be compared between JVMs.
+ * So this extrapolates from a wall clock reading using nanoTime(), and re-checks against the wall clock every
+ * second. Small differences are just millisecond rounding and are ignored (keeping the clock smooth); bigger ones
+ * mean the wall clock was adjusted, so the clock re-syncs. Two JVMs on the same host therefore agree to within
+ * about a millisecond.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public final class JmsClock {
+
+    private static final long RECHECK_NANOS = 1000000000L;
+    private static final long MAX_DRIFT_MICROS = 1000;
+
+    /**
+     * Wall clock time [micros] at nanoTime() [nanos].
+     */
+    private static final class Calibration {
+
+        final long nanos;
+        final long micros;
+
+        Calibration(long nanos, long micros) {
+            this.nanos = nanos;
+            this.micros = micros;
+        }
+    }
+
+    private static volatile Calibration calibration = new Calibration(System.nanoTime(), System.currentTimeMillis() * 1000);
+
+    private JmsClock() {
+    }
+
+    /**
+     * Microseconds since the epoch.
+     */
+    public static long nowMicros() {
+
+        long nanos = System.nanoTime();
+        Calibration current = calibration;
+
+        if (nanos - current.nanos > RECHECK_NANOS) {
+            current = recheck(current, nanos);
+        }
+
+        return current.micros + (nanos - current.nanos) / 1000;
+    }
+
+    private static Calibration recheck(Calibration current, long nanos) {
+
+        long predicted = current.micros + (nanos - current.nanos) / 1000;
+        long wallClock = System.currentTimeMillis() * 1000;
+
+        // Within the rounding of currentTimeMillis() - keep extrapolating from where we are.
+        long micros = Math.abs(wallClock - predicted) <= MAX_DRIFT_MICROS ? predicted : wallClock;
+
+        Calibration next = new Calibration(nanos, micros);
+        calibration = next;
+        return next;
+    }
+}
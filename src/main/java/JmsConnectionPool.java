@@ -0,0 +1,379 @@
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide pool of shared, reference-counted JMS connections, keyed by broker URL (or JNDI factory name).
+ * JmsConnector borrows from here lazily and hands the connection back in close(), so a connector created while
+ * another one is open doesn't cost a broker handshake.
+ *
+ * Up to maxSize connections are opened per key; after that, borrowers share the least-used connection.
+ * By default a connection is closed as soon as its last borrower releases it. With an idleTimeoutMillis set,
+ * it's kept for the next borrower instead, and closed by a background daemon thread once it's been idle that long.
+ * Each pooled connection also caches up to maxIdleSessions idle sessions per acknowledge mode,
+ * each with an LRU cache of up to maxCachedProducers producers.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsConnectionPool {
+
+    private static final JmsConnectionPool INSTANCE = new JmsConnectionPool();
+
+    private final ConcurrentMap<String, List<PooledConnection>> pools = new ConcurrentHashMap<>();
+
+    // One per key, held while connecting (but not while borrowing an open connection):
+    private final ConcurrentMap<String, Object> connectLocks = new ConcurrentHashMap<>();
+
+    private volatile int maxSize = 1;
+    private volatile long idleTimeoutMillis;
+    private volatile int maxIdleSessions = 32;
+    private volatile int maxCachedProducers = 32;
+
+    private ScheduledExecutorService evictor;
+
+    /**
+     * The pool shared by every JmsConnector in this process.
+     */
+    public static JmsConnectionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Max number of physical connections opened per key. Defaults to 1 (everyone shares one connection).
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Keep unreferenced connections open for this long, for the next borrower. Defaults to 0, meaning they're
+     * closed as soon as the last borrower releases them.
+     * ActiveMQ's TCP transport threads aren't daemon threads, so while an idle connection is kept, the JVM won't
+     * exit on its own - call closeAll() on shutdown.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis can't be negative: " + idleTimeoutMillis);
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Max idle sessions cached per connection and acknowledge mode. Defaults to 32; 0 disables session caching.
+     */
+    public void setMaxIdleSessions(int maxIdleSessions) {
+        if (maxIdleSessions < 0) {
+            throw new IllegalArgumentException("maxIdleSessions can't be negative: " + maxIdleSessions);
+        }
+        this.maxIdleSessions = maxIdleSessions;
+    }
+
+    public int getMaxIdleSessions() {
+        return maxIdleSessions;
+    }
+
+    /**
+     * Max producers (one per destination) cached per session, least recently used are closed first. Defaults to 32.
+     */
+    public void setMaxCachedProducers(int maxCachedProducers) {
+        if (maxCachedProducers < 1) {
+            throw new IllegalArgumentException("maxCachedProducers must be at least 1: " + maxCachedProducers);
+        }
+        this.maxCachedProducers = maxCachedProducers;
+    }
+
+    public int getMaxCachedProducers() {
+        return maxCachedProducers;
+    }
+
+    /**
+     * Borrow a started connection for the given key, creating one with [factory] if needed.
+     * Every borrow must be matched by a call to release().
+     */
+    public PooledConnection borrow(String key, ConnectionFactory factory) throws JMSException {
+        return borrow(key, factory, null);
+    }
+
+    /**
+     * Like borrow(key, factory), giving new connections a client ID (needed for durable subscriptions).
+     * Connections with a client ID must have a key of their own, since the broker allows only one connection
+     * per client ID.
+     */
+    public PooledConnection borrow(String key, ConnectionFactory factory, String clientId) throws JMSException {
+
+        startEvictor();
+
+        List<PooledConnection> pool = poolFor(key);
+        PooledConnection pooled = borrowExisting(pool);
+
+        if (pooled != null) {
+            return pooled;
+        }
+
+        // Connect outside the pool lock, so a slow broker doesn't hold up borrowers of connections that are
+        // already open. Connects for the same key still go one at a time - the broker allows only one
+        // connection per client ID, and the first connect usually makes the second unnecessary.
+        synchronized (connectLockFor(key)) {
+
+            // Someone else may have just connected.
+            pooled = borrowExisting(pool);
+
+            if (pooled != null) {
+                return pooled;
+            }
+
+            Connection connection = createConnection(factory, clientId);
+
+            try {
+                pooled = new PooledConnection(this, key, connection);
+            } catch (JMSException e) {
+                closeQuietly(connection);
+                throw e;
+            }
+
+            synchronized (pool) {
+                pool.add(pooled);
+                pooled.refCount++;
+            }
+
+            return pooled;
+        }
+    }
+
+    /**
+     * Borrow the least-used healthy connection in [pool], or return null if a new one should be opened - because
+     * there isn't one, or the best one is already in use and there's room for another.
+     */
+    private PooledConnection borrowExisting(List<PooledConnection> pool) {
+
+        List<PooledConnection> dead = new ArrayList<>();
+
+        try {
+
+            synchronized (pool) {
+
+                PooledConnection best = null;
+
+                for (Iterator<PooledConnection> iter = pool.iterator(); iter.hasNext(); ) {
+
+                    PooledConnection pooled = iter.next();
+
+                    // Health validation - drop dead connections nobody is using anymore.
+                    if (!pooled.isHealthy()) {
+                        if (pooled.refCount == 0) {
+                            iter.remove();
+                            dead.add(pooled);
+                        }
+                        continue;
+                    }
+
+                    if (best == null || pooled.refCount < best.refCount) {
+                        best = pooled;
+                    }
+                }
+
+                if (best == null || (best.refCount > 0 && pool.size() < maxSize)) {
+                    return null;
+                }
+
+                best.refCount++;
+                return best;
+            }
+
+        } finally {
+            closeAllQuietly(dead);
+        }
+    }
+
+    /**
+     * Hand a borrowed connection back. It's closed once the last borrower lets go, unless an idle timeout is set
+     * and it's still healthy - then it stays open for the next borrower.
+     */
+    public void release(PooledConnection pooled) {
+
+        List<PooledConnection> pool = poolFor(pooled.getKey());
+
+        synchronized (pool) {
+
+            if (pooled.refCount > 0) {
+                pooled.refCount--;
+            }
+
+            pooled.lastReleasedMillis = System.currentTimeMillis();
+
+            if (pooled.refCount > 0 || (idleTimeoutMillis > 0 && pooled.isHealthy())) {
+                return;
+            }
+
+            pool.remove(pooled);
+        }
+
+        // Nobody can borrow it anymore, so it can be closed without holding up the pool.
+        pooled.closeQuietly();
+    }
+
+    /**
+     * Close unreferenced connections that have been idle too long, as well as dead ones.
+     * Called periodically by the evictor thread, but safe to call any time.
+     */
+    public void evictIdle() {
+
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        List<PooledConnection> evicted = new ArrayList<>();
+
+        for (List<PooledConnection> pool : pools.values()) {
+            synchronized (pool) {
+                for (Iterator<PooledConnection> iter = pool.iterator(); iter.hasNext(); ) {
+
+                    PooledConnection pooled = iter.next();
+
+                    if (pooled.refCount == 0 && (!pooled.isHealthy() || pooled.lastReleasedMillis < cutoff)) {
+                        iter.remove();
+                        evicted.add(pooled);
+                    }
+                }
+            }
+        }
+
+        closeAllQuietly(evicted);
+    }
+
+    /**
+     * Close every pooled connection, e.g. on application shutdown.
+     * Connectors still holding a connection see that it's broken, and borrow a new one on next use.
+     */
+    public void closeAll() {
+
+        List<PooledConnection> closed = new ArrayList<>();
+
+        for (List<PooledConnection> pool : pools.values()) {
+            synchronized (pool) {
+                for (PooledConnection pooled : pool) {
+                    pooled.markBroken();
+                    closed.add(pooled);
+                }
+                pool.clear();
+            }
+        }
+
+        closeAllQuietly(closed);
+    }
+
+    private static void closeAllQuietly(List<PooledConnection> toClose) {
+        for (PooledConnection pooled : toClose) {
+            pooled.closeQuietly();
+        }
+    }
+
+    /**
+     * Number of open connections for the given key.
+     */
+    public int size(String key) {
+        List<PooledConnection> pool = poolFor(key);
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    private List<PooledConnection> poolFor(String key) {
+
+        List<PooledConnection> pool = pools.get(key);
+
+        if (pool == null) {
+            List<PooledConnection> newPool = new ArrayList<>();
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+
+        return pool;
+    }
+
+    private Object connectLockFor(String key) {
+
+        Object lock = connectLocks.get(key);
+
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = connectLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        return lock;
+    }
+
+    private static Connection createConnection(ConnectionFactory factory, String clientId) throws JMSException {
+
+        Connection connection = factory.createConnection();
+
+        try {
+            // The client ID has to be set before the connection is used for anything else.
+            if (clientId != null) {
+                connection.setClientID(clientId);
+            }
+            connection.start();
+        } catch (JMSException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+
+        return connection;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (Exception e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Lazily start the daemon thread that closes idle connections.
+     */
+    private synchronized void startEvictor() {
+
+        if (evictor != null) {
+            return;
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "JmsConnectionPool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+}
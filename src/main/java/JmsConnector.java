@@ -1,19 +1,54 @@
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.BlobMessage;
+import org.apache.activemq.ConnectionClosedException;
+import org.apache.activemq.ConnectionFailedException;
 import org.apache.log4j.BasicConfigurator;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
 import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.InvalidDestinationException;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
 import javax.jms.Session;
-import javax.jms.TextMessage;
-import javax.naming.InitialContext;
+import javax.jms.Topic;
 import javax.naming.NamingException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A lightweight JMS / ActiveMQ wrapper for producing and consuming JMS messages.
@@ -26,26 +61,155 @@ public class JmsConnector {
     // Connection factory name in jndi.properties:
     protected static final String JMS_CONN_FACTORY_NAME = "connectionFactory";
 
+    // Every send stamps the message with this long property: JmsClock.nowMicros() just before sending.
+    public static final String SENT_MICROS_PROPERTY = "JmsConnectorSentMicros";
+
+    // Timeout for receive() meaning "block until a message arrives":
+    protected static final long WAIT_FOREVER = -1;
+
+    // Per-thread scratch space for copying bytes in and out of BytesMessages when they can't be copied directly:
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    // Compressed messages carry the compressor's name in this string property:
+    public static final String COMPRESSION_PROPERTY = "JmsConnectorCompression";
+
+    // ...and compressed text, which goes out as a BytesMessage, also has this boolean property set:
+    public static final String COMPRESSED_TEXT_PROPERTY = "JmsConnectorCompressedText";
+
+    // ...and the uncompressed size in this int property, so consumers know not to inflate any more than that:
+    public static final String UNCOMPRESSED_SIZE_PROPERTY = "JmsConnectorUncompressedSize";
+
+    // No message is decompressed past this, whatever its sender says (see setMaxDecompressedBytes()):
+    private static volatile int maxDecompressedBytes = 64 * 1024 * 1024;
+
+    // Compressors consumers know how to undo, by name:
+    private static final ConcurrentMap<String, MessageCompressor> COMPRESSORS = new ConcurrentHashMap<>();
+
+    static {
+        registerCompressor(new DeflateCompressor());
+    }
+
+    // Codec used by connectors that don't call setCodec() - codecs are stateless, so one is enough:
+    private static final MessageCodec DEFAULT_CODEC = new SerializableCodec();
+
+    // Whether configureLogging() has run. Guarded by JmsConnector.class:
+    private static boolean loggingConfigured;
+
+    // Metrics used by connectors that don't call setMetrics():
+    private static volatile JmsMetrics defaultMetrics = JmsMetrics.NOOP;
+
     // Specific JMS URL / queue settings for this connection:
     protected boolean useJndi = true;
     protected String jmsUrl;
     protected String jmsQueueName;
 
+    // Topic settings - see asTopic(), setDurableSubscription() and setConsumerGroup():
+    protected boolean useTopic;
+    protected String clientId;
+    protected String subscriptionName;
+    protected String consumerGroup;
+
+    // Default delivery options for every send on this connector:
+    protected int deliveryMode = Message.DEFAULT_DELIVERY_MODE;
+    protected int priority = Message.DEFAULT_PRIORITY;
+    protected long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+
+    // Properties stamped on every send, e.g. for consumers' selectors to match on. Replaced, never changed,
+    // since async sends read it on another thread:
+    protected volatile Map<String, Object> messageProperties = Collections.emptyMap();
+
+    // Batch send limits - a batch is committed when either is reached:
+    protected int maxBatchSize = 500;
+    protected long maxBatchBytes = 1024 * 1024;
+
+    // Consumer tuning (ActiveMQ only) - prefetchSize is -1 and dispatchAsync is null for the provider defaults:
+    protected int prefetchSize = -1;
+    protected Boolean dispatchAsync;
+    protected boolean optimizeAcknowledge;
+    protected AdaptivePrefetch adaptivePrefetch;
+
+    // How send(obj) / consume(type) turn objects into messages and back:
+    protected MessageCodec codec = DEFAULT_CODEC;
+
+    // Payloads at least this big (in bytes, or characters for text) are compressed, if a compressor is set:
+    protected MessageCompressor compressor;
+    protected int compressionThreshold;
+
+    // Where send / receive / setup timings go:
+    protected JmsMetrics metrics = defaultMetrics;
+
     // Plumbing needed for JMS:
-    protected InitialContext jndi;
     protected ConnectionFactory conFactory;
+    protected PooledConnection pooledConnection;
     protected Connection connection;
+    protected CachedSession cachedSession;
     protected Session session;
     protected Destination destination;
     protected MessageProducer producer;
     protected MessageConsumer consumer;
 
+    // Destinations other than our own, by name, and their consumers (on [session]) - see sendTextMessageTo():
+    protected Map<String, Destination> namedDestinations = new HashMap<>();
+    protected Map<String, MessageConsumer> namedConsumers = new HashMap<>();
+
+    // Consumers (on [session]) for consume(selector, ...), by selector - see setMaxSelectorConsumers().
+    // Access-ordered, so the least recently used consumer is evicted (and closed) first.
+    protected int maxSelectorConsumers = 16;
+    protected Map<String, MessageConsumer> selectorConsumers = new LinkedHashMap<String, MessageConsumer>(16, 0.75f,
+        true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MessageConsumer> eldest) {
+            if (size() > maxSelectorConsumers) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Separate CLIENT_ACKNOWLEDGE session / consumer used by consumeBatch() and consume(handler, ...):
+    protected CachedSession batchSession;
+    protected MessageConsumer batchConsumer;
+
+    // Sends made by the *Async() methods, and how many of them may be pending at once:
+    protected JmsAsyncSender asyncSender;
+    protected int asyncSendWindow = 1000;
+
+    // Push-based consumers started by listen():
+    protected List<JmsListenerContainer> listeners = new ArrayList<>();
+
+    // Reconnect handling - null means failures go straight to the caller:
+    protected JmsReconnectPolicy reconnectPolicy;
+    protected List<String> brokerUrls;
+    protected int brokerUrlIndex;
+
+    // Sends held back during an outage (see setOutageBufferSize()), and when to try the broker again:
+    protected int outageBufferSize;
+    protected Deque<JmsOperation<Void>> outageBuffer = new ArrayDeque<>();
+    protected int reconnectAttempts;
+    protected long nextReconnectNanos;
+
+    // Where text sends go while the broker can't take them (see setOutbox()):
+    protected JmsOutbox outbox;
+
+    // The consumer a consume() is blocked in, so a connection failure can wake it up:
+    private volatile MessageConsumer blockedConsumer;
+    private final ExceptionListener wakeBlockedConsumer = e -> closeBlockedConsumer();
+
+    /**
+     * Something done against the broker, which can be retried after reconnecting.
+     */
+    protected interface JmsOperation<T> {
+        T run() throws NamingException, JMSException;
+    }
+
     /**
      * If you use this constructor, the JMS URL and queue name will be looked up from jndi.properties.
      * The default connection factory name is "connectionFactory".
      * You must call close() in a finally block.
      *
      * @param jmsQueueName in jndi.properties, if "queue.MyQueue = myqueue" is defined, this should be "MyQueue".
+     *                     May be null for a connector only used with named destinations (see sendTextMessageTo()).
      */
     public JmsConnector(String jmsQueueName) {
         useJndi = true;
@@ -56,13 +220,51 @@ public class JmsConnector {
      * You can use this constructor to not use JNDI and to specify the JMS URL and queue name directly.
      * You must call close() in a finally block.
      *
-     * @param jmsUrl e.g. "tcp://localhost:61616"
-     * @param jmsQueueName e.g. "users" or whatever direct queue name shows up in ActiveMQ
+     * @param jmsUrl e.g. "tcp://localhost:61616". With setReconnectPolicy(), this may list several brokers
+     *               ("tcp://host1:61616,tcp://host2:61616") - each reconnect attempt moves on to the next one.
+     * @param jmsQueueName e.g. "users" or whatever direct queue name shows up in ActiveMQ.
+     *                     May be null for a connector only used with named destinations (see sendTextMessageTo()).
      */
     public JmsConnector(String jmsUrl, String jmsQueueName) {
         useJndi = false;
         this.jmsUrl = jmsUrl;
         this.jmsQueueName = jmsQueueName;
+        this.brokerUrls = splitBrokerUrls(jmsUrl);
+    }
+
+    /**
+     * Split a comma-separated list of broker URLs. Commas inside parentheses belong to a single URL,
+     * e.g. "failover:(tcp://host1:61616,tcp://host2:61616)".
+     */
+    private static List<String> splitBrokerUrls(String jmsUrl) {
+
+        List<String> urls = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+
+        for (int i = 0; i < jmsUrl.length(); i++) {
+
+            char c = jmsUrl.charAt(i);
+
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                urls.add(jmsUrl.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+
+        urls.add(jmsUrl.substring(start).trim());
+        return urls;
+    }
+
+    /**
+     * The broker URL currently in use.
+     */
+    protected String activeUrl() {
+        return brokerUrls.get(brokerUrlIndex % brokerUrls.size());
     }
 
     /**
@@ -71,18 +273,19 @@ public class JmsConnector {
      */
     private void validateConnection() throws NamingException, JMSException {
 
+        if (pooledConnection != null && !pooledConnection.isHealthy()) {
+            // Closed by JmsConnectionPool.closeAll(), or died - start over on a fresh connection.
+            releaseResources();
+        }
+
         if (useJndi) {
 
             // USE JNDI:
 
-            if (jndi == null) {
-                // Obtain a JNDI connection.
-                jndi = new InitialContext();
-            }
-
             if (conFactory == null) {
-                // Look up our JMS connection factory.
-                conFactory = (ConnectionFactory) jndi.lookup(JMS_CONN_FACTORY_NAME);
+                // Look up our JMS connection factory. Lookups are cached process-wide, see JmsJndiCache.
+                Object factory = JmsJndiCache.getInstance().lookup(JMS_CONN_FACTORY_NAME);
+                conFactory = configureFactory((ConnectionFactory) factory);
             }
 
         } else {
@@ -91,228 +294,2439 @@ public class JmsConnector {
 
             if (conFactory == null) {
 
-                BasicConfigurator.configure();
+                configureLogging();
 
                 // Make a direct ActiveMQ JMS connection.
-                conFactory = new ActiveMQConnectionFactory(jmsUrl);
+                conFactory = configureFactory(new ActiveMQConnectionFactory(activeUrl()));
             }
         }
 
         if (connection == null) {
-            // Create the JMS connection.
-            connection = conFactory.createConnection();
-            connection.start();
+
+            // Borrow a shared, already-started JMS connection from the pool.
+            long start = System.nanoTime();
+
+            try {
+                pooledConnection = JmsConnectionPool.getInstance().borrow(poolKey(), conFactory, clientId);
+            } catch (JMSException e) {
+                metrics.recordError(JmsMetrics.CONNECTION_SETUP, metricsTag());
+                throw e;
+            }
+
+            connection = pooledConnection.getConnection();
+            metrics.recordLatency(JmsMetrics.CONNECTION_SETUP, metricsTag(), System.nanoTime() - start);
+
+            if (reconnectPolicy != null) {
+                pooledConnection.addFailureListener(wakeBlockedConsumer);
+            }
         }
 
         if (session == null) {
-            // Create the JMS session.
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            // Borrow an idle JMS session (or create one) from the pooled connection.
+            cachedSession = borrowSession(false, Session.AUTO_ACKNOWLEDGE);
+            session = cachedSession.getSession();
         }
 
-        if (destination == null) {
-            // Establish the queue destination.
-            destination = useJndi ? (Destination) jndi.lookup(jmsQueueName) : session.createQueue(jmsQueueName);
+        if (destination == null && jmsQueueName != null) {
+            // Establish the queue (or topic) destination.
+            destination = lookupDestination(jmsQueueName);
         }
     }
 
     /**
-     * Lazy-load the JMS connection and the message producer.
+     * Look up a destination in JNDI, or create it on our session for direct config.
      */
-    protected void validateProducer() throws JMSException, NamingException {
+    private Destination lookupDestination(String name) throws NamingException, JMSException {
 
-        validateConnection();
+        if (useJndi) {
+            return (Destination) JmsJndiCache.getInstance().lookup(name);
+        }
 
-        if (producer == null) {
-            // MessageProducer is used for receiving (consuming) messages.
-            producer = session.createProducer(destination);
+        return useTopic ? session.createTopic(name) : session.createQueue(name);
+    }
+
+    /**
+     * Set up basic console logging for direct config, once per process. Each BasicConfigurator.configure() call
+     * adds another appender, so calling it per connector would print every log line once per connector created.
+     */
+    private static synchronized void configureLogging() {
+
+        if (!loggingConfigured) {
+            BasicConfigurator.configure();
+            loggingConfigured = true;
         }
     }
 
     /**
-     * Lazy-load the JMS connection and the message consumer.
+     * Borrow a session from the pooled connection, timing it as JmsMetrics.SESSION_CREATE.
      */
-    protected void validateConsumer() throws JMSException, NamingException {
+    protected CachedSession borrowSession(boolean transacted, int ackMode) throws JMSException {
 
-        validateConnection();
+        long start = System.nanoTime();
 
-        if (consumer == null) {
-            // MessageConsumer is used for receiving (consuming) messages.
-            consumer = session.createConsumer(destination);
+        try {
+            CachedSession borrowed = pooledConnection.borrowSession(transacted, ackMode);
+            metrics.recordLatency(JmsMetrics.SESSION_CREATE, metricsTag(), System.nanoTime() - start);
+            return borrowed;
+        } catch (JMSException e) {
+            metrics.recordError(JmsMetrics.SESSION_CREATE, metricsTag());
+            throw e;
         }
     }
 
     /**
-     * Call this to wait for a message to arrive on the queue.
-     * This call blocks forever.
-     * Returned Message may be of type TextMessage, MapMessage, etc.
+     * Metrics are tagged with the queue name this connector was created with, or "*" if it was created without one.
+     * Sends and receives on named destinations are tagged with the destination name instead.
      */
-    public Message consume() throws NamingException, JMSException {
-
-        validateConsumer();
-        return consumer.receive();
+    protected String metricsTag() {
+        return jmsQueueName != null ? jmsQueueName : "*";
     }
 
     /**
-     * Call this to wait for a message to arrive on the queue.
-     * This call blocks, giving up after [timeoutSecs] seconds.
-     * Returned Message may be of type TextMessage, MapMessage, etc.
+     * Use a different metrics registry than the default for this connector.
      */
-    public Message consume(int timeoutSecs) throws NamingException, JMSException {
+    public JmsConnector setMetrics(JmsMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
 
-        validateConsumer();
-        return consumer.receive(timeoutSecs * 1000);
+    /**
+     * The metrics registry used by connectors created from now on. Defaults to JmsMetrics.NOOP.
+     * Example usage: JmsConnector.setDefaultMetrics(new JmxJmsMetrics());
+     */
+    public static void setDefaultMetrics(JmsMetrics metrics) {
+        defaultMetrics = metrics;
     }
 
     /**
-     * Call this to pull a message off the queue. Does not block.
-     * Returns null if there's nothing in the queue.
-     * Returned Message may be of type TextMessage, MapMessage, etc.
+     * Apply connection-level options to the connection factory.
+     * The factory is copied first, since a JNDI factory may be shared with other code.
      */
-    public Message consumeNoWait() throws NamingException, JMSException {
+    protected ConnectionFactory configureFactory(ConnectionFactory factory) {
+
+        if (optimizeAcknowledge && factory instanceof ActiveMQConnectionFactory) {
+            ActiveMQConnectionFactory amqFactory = ((ActiveMQConnectionFactory) factory).copy();
+            amqFactory.setOptimizeAcknowledge(true);
+            return amqFactory;
+        }
 
-        validateConsumer();
-        return consumer.receiveNoWait();
+        return factory;
     }
 
     /**
-     * Send a text message over the queue.
+     * Connections are pooled per broker URL, or per connection factory name when using JNDI.
+     * Connectors with different connection-level options (or client IDs) get separate connections.
      */
-    public void sendTextMessage(String text) throws NamingException, JMSException {
+    protected String poolKey() {
+        String key = useJndi ? "jndi:" + JMS_CONN_FACTORY_NAME : activeUrl();
+        key = optimizeAcknowledge ? key + "#optimizeAcknowledge" : key;
+        return clientId != null ? key + "#clientId=" + clientId : key;
+    }
 
-        validateProducer();
+    /**
+     * The destination to create consumers on: our destination (or our consumer group's queue, see
+     * setConsumerGroup()), plus ActiveMQ consumer options (e.g. "users?consumer.prefetchSize=10") if any were set.
+     * Works for both direct and JNDI destinations, and doesn't affect other consumers on the same (shared) connection.
+     */
+    protected Destination consumerDestination() throws JMSException {
+
+        Destination from = destination;
+
+        if (consumerGroup != null) {
 
-        TextMessage msg = session.createTextMessage(text);
-        producer.send(msg);
+            if (!(destination instanceof Topic)) {
+                throw new InvalidDestinationException("Consumer groups need a virtual topic, not: " + destination);
+            }
+
+            // ActiveMQ copies everything published to VirtualTopic.X into each Consumer.<group>.VirtualTopic.X queue.
+            from = session.createQueue("Consumer." + consumerGroup + "." + ((Topic) destination).getTopicName());
+        }
+
+        return consumerDestination(from);
     }
 
-    //////////////////////////////////////////////////////////////////////
-    // Methods for building and sending a MapMessage:
+    /**
+     * [from], plus this connector's ActiveMQ consumer options, if any.
+     */
+    protected Destination consumerDestination(Destination from) throws JMSException {
 
-    protected MapMessage mapMessage;
+        StringBuilder options = new StringBuilder();
+
+        if (prefetchSize >= 0) {
+            options.append("consumer.prefetchSize=").append(prefetchSize);
+        }
+
+        if (dispatchAsync != null) {
+            options.append(options.length() > 0 ? "&" : "").append("consumer.dispatchAsync=").append(dispatchAsync);
+        }
+
+        if (options.length() == 0) {
+            return from;
+        }
+
+        if (from instanceof Queue) {
+            String name = ((Queue) from).getQueueName();
+            return session.createQueue(name + (name.indexOf('?') < 0 ? "?" : "&") + options);
+        }
+
+        if (from instanceof Topic) {
+            String name = ((Topic) from).getTopicName();
+            return session.createTopic(name + (name.indexOf('?') < 0 ? "?" : "&") + options);
+        }
+
+        return from;
+    }
 
     /**
-     * A Builder-like method used to create, build, and send a MapMessage over the queue.
-     * Chain calls to addMap() methods, then finish with sendMapMessage().
-     * Example usage: startMapMessage().addMapString("name", "luke").sendMapMessage();
+     * Create a consumer on [on] for consumerDestination() - a durable subscriber if setDurableSubscription()
+     * was called.
      */
-    public JmsConnector startMapMessage() throws JMSException, NamingException {
-        validateProducer();
-        mapMessage = session.createMapMessage();
-        return this;
+    protected MessageConsumer createConsumer(Session on) throws JMSException {
+        return createConsumer(on, null);
     }
 
     /**
-     * While creating a map message, add an entire map of strings.
+     * Like createConsumer(on), only receiving messages that match [selector] (null for all of them).
      */
-    public JmsConnector addMapStringMap(Map<String, String> strMap) throws JMSException {
+    protected MessageConsumer createConsumer(Session on, String selector) throws JMSException {
 
-        validateMapMessage();
+        Destination from = consumerDestination();
 
-        for (Map.Entry<String, String> entry : strMap.entrySet()) {
-            mapMessage.setString(entry.getKey(), entry.getValue());
+        if (subscriptionName == null) {
+            return on.createConsumer(from, selector);
         }
 
-        return this;
+        if (!(from instanceof Topic)) {
+            throw new InvalidDestinationException("Durable subscriptions need a topic, not: " + from);
+        }
+
+        checkSelector(selector);
+        return on.createDurableSubscriber((Topic) from, subscriptionName);
     }
 
     /**
-     * While creating a map message, add a string.
+     * Selectors can't be used with a durable subscription. A subscription's selector is fixed when it's created,
+     * and subscribing again under the same name with a different one makes the broker delete and recreate it -
+     * throwing away every message waiting in it.
      */
-    public JmsConnector addMapString(String key, String val) throws JMSException {
-        validateMapMessage();
-        mapMessage.setString(key, val);
-        return this;
+    private void checkSelector(String selector) {
+        if (selector != null && subscriptionName != null) {
+            throw new IllegalStateException("Selectors can't be used with durable subscription " + subscriptionName
+                + " - a different selector would reset the subscription and lose its messages.");
+        }
     }
 
     /**
-     * While creating a map message, add an int.
+     * Lazy-load the JMS connection and the message producer.
      */
-    public JmsConnector addMapInt(String key, int val) throws JMSException {
-        validateMapMessage();
-        mapMessage.setInt(key, val);
-        return this;
+    protected void validateProducer() throws JMSException, NamingException {
+
+        validateConnection();
+
+        if (producer == null) {
+            // MessageProducer is used for sending (producing) messages.
+            // Producers are cached along with the session, so this is usually not a broker round trip.
+            producer = cachedSession.getProducer(destination);
+        }
     }
 
     /**
-     * Send the built map message. Must call startMapMessage() and build with addMap() methods before ending
-     * with a call to this.
-     * Example usage: startMapMessage().addMapString("name", "luke").sendMapMessage();
+     * Lazy-load the JMS connection and the message consumer.
      */
-    public void sendMapMessage() throws NamingException, JMSException {
-        validateMapMessage();
-        producer.send(mapMessage);
-        mapMessage = null;
+    protected void validateConsumer() throws JMSException, NamingException {
+
+        validateConnection();
+
+        if (consumer == null) {
+            // MessageConsumer is used for receiving (consuming) messages.
+            consumer = createConsumer(session);
+        }
     }
 
     /**
-     * When building a map message, make sure they're calling the build methods in order...
+     * Called by the consume methods before each receive.
+     * In adaptive prefetch mode, this is where the consumer gets recreated with a better prefetch size.
      */
-    private void validateMapMessage() {
-        if (mapMessage == null) {
-            throw new RuntimeException("You must call startMapMessage() before calling addMap() methods or sendMapMessage().");
+    protected void beforeReceive() throws JMSException {
+
+        if (adaptivePrefetch == null) {
+            return;
+        }
+
+        adaptivePrefetch.beforeReceive();
+
+        int suggested = adaptivePrefetch.suggestPrefetch(prefetchSize);
+
+        if (suggested != prefetchSize) {
+
+            // Prefetch can only be set when the consumer is created. Closing it hands any
+            // prefetched messages back to the broker.
+            prefetchSize = suggested;
+
+            if (consumer != null) {
+                consumer.close();
+                consumer = null;
+            }
         }
     }
 
-    // End MapMessage-specific builder / sender methods.
-    //////////////////////////////////////////////////////////////////////
+    /**
+     * Every receive on this connector ends up here.
+     *
+     * @param timeoutMillis WAIT_FOREVER to block until a message arrives, 0 to not block at all
+     */
+    protected Message receive(MessageConsumer from, long timeoutMillis) throws JMSException {
+        return receive(from, timeoutMillis, metricsTag());
+    }
 
     /**
-     * Must finally call this to clean up resources.
-     * This method is idempotent.
+     * Like receive(from, timeoutMillis), tagging metrics with [tag].
      */
-    public void close() {
+    protected Message receive(MessageConsumer from, long timeoutMillis, String tag) throws JMSException {
 
-        // Quietly try to close all the things.
+        long start = System.nanoTime();
+        metrics.adjustInFlight(JmsMetrics.RECEIVE, tag, 1);
 
-        if (producer != null) {
-            try {
-                producer.close();
-            } catch (Exception e) {
-                // Ignore.
-            }
-        }
+        try {
 
-        if (consumer != null) {
-            try {
-                consumer.close();
-            } catch (Exception e) {
-                // Ignore.
+            Message msg;
+
+            if (timeoutMillis == WAIT_FOREVER) {
+
+                blockedConsumer = from;
+
+                try {
+                    msg = from.receive();
+                } finally {
+                    blockedConsumer = null;
+                }
+
+                if (msg == null && pooledConnection != null && !pooledConnection.isHealthy()) {
+                    // Woken up by closeBlockedConsumer().
+                    throw new JMSException("Connection failed while waiting for a message.");
+                }
+
+            } else if (timeoutMillis == 0) {
+                msg = from.receiveNoWait();
+            } else {
+                msg = from.receive(timeoutMillis);
             }
+
+            metrics.recordLatency(JmsMetrics.RECEIVE, tag, System.nanoTime() - start);
+            recordEndToEnd(metrics, tag, msg);
+            return decompress(msg);
+
+        } catch (JMSException e) {
+            metrics.recordError(JmsMetrics.RECEIVE, tag);
+            throw e;
+        } finally {
+            metrics.adjustInFlight(JmsMetrics.RECEIVE, tag, -1);
         }
+    }
 
-        if (session != null) {
-            try {
-                session.close();
-            } catch (Exception e) {
-                // Ignore.
-            }
+    /**
+     * Record how long [msg] took from the producer's send to here, as JmsMetrics.END_TO_END.
+     * Messages without a send stamp (e.g. from other producers) are skipped. Since producer and consumer clocks
+     * may disagree slightly, small negative latencies are recorded as 0.
+     */
+    protected static void recordEndToEnd(JmsMetrics metrics, String tag, Message msg) {
+
+        if (msg == null) {
+            return;
         }
 
-        if (connection != null) {
-            try {
-                connection.close();
-            } catch (Exception e) {
-                // Ignore.
+        try {
+
+            if (!msg.propertyExists(SENT_MICROS_PROPERTY)) {
+                return;
             }
+
+            long micros = JmsClock.nowMicros() - msg.getLongProperty(SENT_MICROS_PROPERTY);
+            metrics.recordLatency(JmsMetrics.END_TO_END, tag, Math.max(0, micros) * 1000);
+
+        } catch (Exception e) {
+            // Not a number - someone else's property. Ignore.
         }
+    }
 
-        if (jndi != null) {
-            try {
-                jndi.close();
-            } catch (Exception e) {
-                // Ignore.
-            }
+    /**
+     * Called by the consume methods with whatever was received (possibly null). Returns the message to hand back.
+     */
+    protected Message received(Message msg) {
+
+        if (adaptivePrefetch != null) {
+            adaptivePrefetch.afterReceive(msg != null);
         }
 
-        // Let's reset everything in case the caller wants to try to reconnect if something fails.
-        // Nulling these out means we'll retry to lazy-load.
+        return msg;
+    }
 
-        jndi = null;
-        conFactory = null;
-        connection = null;
-        session = null;
-        destination = null;
-        producer = null;
-        consumer = null;
+    /**
+     * Call this to wait for a message to arrive on the queue.
+     * This call blocks forever.
+     * Returned Message may be of type TextMessage, MapMessage, etc.
+     */
+    public Message consume() throws NamingException, JMSException {
+        return withReconnect(() -> {
+            beforeReceive();
+            validateConsumer();
+            return received(receive(consumer, WAIT_FOREVER));
+        });
+    }
+
+    /**
+     * Call this to wait for a message to arrive on the queue.
+     * This call blocks, giving up after [timeoutSecs] seconds.
+     * Returned Message may be of type TextMessage, MapMessage, etc.
+     */
+    public Message consume(final int timeoutSecs) throws NamingException, JMSException {
+        return withReconnect(() -> {
+            beforeReceive();
+            validateConsumer();
+            // receive(0) has always meant "wait forever" here.
+            return received(receive(consumer, timeoutSecs > 0 ? timeoutSecs * 1000L : WAIT_FOREVER));
+        });
+    }
+
+    /**
+     * Call this to pull a message off the queue. Does not block.
+     * Returns null if there's nothing in the queue.
+     * Returned Message may be of type TextMessage, MapMessage, etc.
+     */
+    public Message consumeNoWait() throws NamingException, JMSException {
+        return withReconnect(() -> {
+            beforeReceive();
+            validateConsumer();
+            return received(receive(consumer, 0));
+        });
+    }
+
+    /**
+     * Wait for a message matching the JMS message [selector] (e.g. "tenant = 'acme'") to arrive on the queue,
+     * giving up after [timeoutSecs] seconds (0 waits forever). The broker does the filtering, so messages that
+     * don't match stay on the queue for other consumers, without ever being sent to this client.
+     * Each selector's consumer is kept open for the next call - see setMaxSelectorConsumers().
+     */
+    public Message consume(final String selector, final int timeoutSecs) throws NamingException, JMSException {
+        checkSelector(selector);
+        return withReconnect(() ->
+            receive(selectorConsumer(selector), timeoutSecs > 0 ? timeoutSecs * 1000L : WAIT_FOREVER));
+    }
+
+    /**
+     * Pull a message matching [selector] off the queue without blocking - see consume(selector, timeoutSecs).
+     * Returns null if there's no matching message.
+     */
+    public Message consumeNoWait(final String selector) throws NamingException, JMSException {
+        checkSelector(selector);
+        return withReconnect(() -> receive(selectorConsumer(selector), 0));
+    }
+
+    private MessageConsumer selectorConsumer(String selector) throws NamingException, JMSException {
+
+        validateConnection();
+
+        MessageConsumer filtered = selectorConsumers.get(selector);
+
+        if (filtered == null) {
+            filtered = createConsumer(session, selector);
+            selectorConsumers.put(selector, filtered);
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Max consumers kept open for consume(selector, ...), one per selector. Past this, the least recently used
+     * one is closed, and the messages prefetched for it go back to the broker. Defaults to 16.
+     */
+    public JmsConnector setMaxSelectorConsumers(int maxSelectorConsumers) {
+        if (maxSelectorConsumers < 1) {
+            throw new IllegalArgumentException("maxSelectorConsumers must be at least 1: " + maxSelectorConsumers);
+        }
+        this.maxSelectorConsumers = maxSelectorConsumers;
+        return this;
+    }
+
+    /**
+     * Lazy-load the JMS connection and the CLIENT_ACKNOWLEDGE consumer used for batch consumption.
+     */
+    protected void validateBatchConsumer() throws JMSException, NamingException {
+
+        validateConnection();
+
+        if (batchSession == null) {
+            batchSession = borrowSession(false, Session.CLIENT_ACKNOWLEDGE);
+        }
+
+        if (batchConsumer == null) {
+            batchConsumer = createConsumer(batchSession.getSession());
+        }
+    }
+
+    /**
+     * Pull up to [maxMessages] messages off the queue, waiting at most [maxWaitMillis] for them to arrive.
+     * Once the wait is over, messages already delivered to this client are still drained without blocking.
+     * The whole batch is acknowledged with a single acknowledge() call before it is returned.
+     * Returns an empty list if nothing arrived in time.
+     */
+    public List<Message> consumeBatch(final int maxMessages, final long maxWaitMillis)
+        throws NamingException, JMSException {
+
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be at least 1: " + maxMessages);
+        }
+
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("maxWaitMillis can't be negative: " + maxWaitMillis);
+        }
+
+        return withReconnect(() -> receiveBatch(maxMessages, maxWaitMillis));
+    }
+
+    private List<Message> receiveBatch(int maxMessages, long maxWaitMillis) throws NamingException, JMSException {
+
+        validateBatchConsumer();
+
+        List<Message> batch = new ArrayList<>(Math.min(maxMessages, 1024));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        while (batch.size() < maxMessages) {
+
+            // Round up, since receive(0) means wait forever.
+            long remainingNanos = deadline - System.nanoTime();
+            long remainingMillis = (remainingNanos + 999999) / 1000000;
+
+            Message msg = receive(batchConsumer, Math.max(0, remainingMillis));
+
+            if (msg == null) {
+                break;
+            }
+
+            batch.add(msg);
+        }
+
+        if (!batch.isEmpty()) {
+            // In CLIENT_ACKNOWLEDGE mode this acks every message consumed by the session so far.
+            batch.get(batch.size() - 1).acknowledge();
+        }
+
+        return batch;
+    }
+
+    /**
+     * Wait for a message to arrive on the queue and hand it to [handler], giving up after [timeoutSecs] seconds
+     * (0 waits forever). The message is only acknowledged once the handler returns. If the handler throws,
+     * the message is handed back to the broker for redelivery, and the handler's exception is passed on.
+     * Uses the same CLIENT_ACKNOWLEDGE session as consumeBatch().
+     *
+     * @return false if nothing arrived in time
+     */
+    public boolean consume(final MessageListener handler, final int timeoutSecs) throws NamingException, JMSException {
+
+        Message msg = withReconnect(() -> {
+            validateBatchConsumer();
+            return receive(batchConsumer, timeoutSecs > 0 ? timeoutSecs * 1000L : WAIT_FOREVER);
+        });
+
+        if (msg == null) {
+            return false;
+        }
+
+        try {
+            handler.onMessage(msg);
+        } catch (RuntimeException e) {
+
+            // Redeliver everything this session hasn't acknowledged, i.e. this message.
+            try {
+                batchSession.getSession().recover();
+            } catch (JMSException re) {
+                e.addSuppressed(re);
+            }
+
+            throw e;
+        }
+
+        msg.acknowledge();
+        return true;
+    }
+
+    /**
+     * Start pushing messages from the queue to [handler] on [concurrency] parallel sessions,
+     * instead of blocking a caller thread in consume(). The handler is called from several threads at once,
+     * so it must be thread-safe. If it throws, the message is redelivered.
+     * Listening stops when the returned container or this connector is closed.
+     * With setReconnectPolicy(), the container reconnects by itself if its connection fails.
+     */
+    public JmsListenerContainer listen(MessageListener handler, int concurrency) throws NamingException, JMSException {
+        return listen(null, handler, concurrency);
+    }
+
+    /**
+     * Like listen(handler, concurrency), only pushing messages that match the JMS message [selector],
+     * e.g. "tenant = 'acme'". The broker does the filtering, so other messages never reach this client.
+     */
+    public JmsListenerContainer listen(String selector, MessageListener handler, int concurrency)
+        throws NamingException, JMSException {
+
+        checkSelector(selector);
+
+        withReconnect(() -> {
+            validateConnection();
+            return null;
+        });
+
+        final JmsMetrics listenerMetrics = metrics;
+        final String tag = metricsTag();
+
+        // Measure queue residence time for pushed messages too.
+        MessageListener timedHandler = msg -> {
+
+            recordEndToEnd(listenerMetrics, tag, msg);
+
+            try {
+                msg = decompress(msg);
+            } catch (JMSException e) {
+                // Throwing from a listener gets the message redelivered, which is the best we can do.
+                throw new RuntimeException("Couldn't decompress message", e);
+            }
+
+            handler.onMessage(msg);
+        };
+
+        JmsListenerContainer container = new JmsListenerContainer(
+            poolKey(), conFactory, clientId, consumerDestination(), subscriptionName, selector, timedHandler,
+            concurrency, reconnectPolicy);
+        listeners.add(container);
+        return container;
+    }
+
+    /**
+     * How many messages the broker may push to each consumer ahead of time (ActiveMQ only).
+     * ActiveMQ defaults to 1000 for queues. Lower it for slow consumers, so they don't hoard messages
+     * other consumers could be working on; 0 means every receive polls the broker.
+     * Applies to consumers created after this call.
+     */
+    public JmsConnector setPrefetchSize(int prefetchSize) {
+        if (prefetchSize < 0) {
+            throw new IllegalArgumentException("prefetchSize can't be negative: " + prefetchSize);
+        }
+        this.prefetchSize = prefetchSize;
+        return this;
+    }
+
+    /**
+     * Whether the broker dispatches to our consumers from a separate thread (ActiveMQ only).
+     * Applies to consumers created after this call.
+     */
+    public JmsConnector setDispatchAsync(boolean dispatchAsync) {
+        this.dispatchAsync = dispatchAsync;
+        return this;
+    }
+
+    /**
+     * Acknowledge consumed messages in batches rather than one by one (ActiveMQ only).
+     * This is a connection-level setting, so connectors using it get their own pooled connection.
+     * Must be called before the connector is first used.
+     */
+    public JmsConnector setOptimizeAcknowledge(boolean optimizeAcknowledge) {
+        this.optimizeAcknowledge = optimizeAcknowledge;
+        return this;
+    }
+
+    /**
+     * Let consume() / consumeNoWait() resize the prefetch on the fly, based on how long the caller takes to process
+     * each message, aiming to keep [targetBufferMillis] worth of work prefetched (ActiveMQ only).
+     * Starts from setPrefetchSize(), or ActiveMQ's default of 1000.
+     *
+     * @param maxPrefetch upper bound for the prefetch size
+     */
+    public JmsConnector setAdaptivePrefetch(long targetBufferMillis, int maxPrefetch) {
+
+        adaptivePrefetch = new AdaptivePrefetch(targetBufferMillis, maxPrefetch);
+
+        if (prefetchSize < 0) {
+            prefetchSize = Math.min(1000, maxPrefetch);
+        }
+
+        return this;
+    }
+
+    /**
+     * Set the default delivery mode used by every send on this connector: DeliveryMode.PERSISTENT (the default),
+     * or DeliveryMode.NON_PERSISTENT, which skips the broker's journal - handy for high-volume, disposable data.
+     */
+    public JmsConnector setDeliveryMode(int deliveryMode) {
+        if (deliveryMode != DeliveryMode.PERSISTENT && deliveryMode != DeliveryMode.NON_PERSISTENT) {
+            throw new IllegalArgumentException("Unknown delivery mode: " + deliveryMode);
+        }
+        this.deliveryMode = deliveryMode;
+        return this;
+    }
+
+    /**
+     * Set the default priority used by every send on this connector: 0 (lowest) to 9 (highest). Defaults to 4.
+     */
+    public JmsConnector setPriority(int priority) {
+        if (priority < 0 || priority > 9) {
+            throw new IllegalArgumentException("Priority must be between 0 and 9: " + priority);
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Set the default time-to-live, in milliseconds, for every send on this connector. Defaults to 0 (never expires).
+     */
+    public JmsConnector setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Stamp every message sent from now on with property [name] - e.g. a tenant ID for consumers' selectors
+     * (see consume(selector, timeoutSecs)) to match on. [value] must be a String, Boolean or a primitive number
+     * wrapper; null removes the property.
+     */
+    public JmsConnector setMessageProperty(String name, Object value) {
+
+        if (value != null && !(value instanceof String || value instanceof Boolean || value instanceof Byte
+            || value instanceof Short || value instanceof Integer || value instanceof Long
+            || value instanceof Float || value instanceof Double)) {
+
+            throw new IllegalArgumentException("Not a valid JMS property value: " + value.getClass().getName());
+        }
+
+        Map<String, Object> updated = new LinkedHashMap<>(messageProperties);
+
+        if (value == null) {
+            updated.remove(name);
+        } else {
+            updated.put(name, value);
+        }
+
+        messageProperties = updated;
+        return this;
+    }
+
+    /**
+     * Every send on this connector ends up here. Stamps the message with SENT_MICROS_PROPERTY,
+     * and any properties set with setMessageProperty().
+     * Delivery options are always passed explicitly, since cached producers are shared with other connectors.
+     */
+    protected void send(MessageProducer sender, Message msg, int deliveryMode, int priority, long timeToLive)
+        throws JMSException {
+
+        send(sender, msg, deliveryMode, priority, timeToLive, metricsTag());
+    }
+
+    /**
+     * Like send(sender, msg, deliveryMode, priority, timeToLive), tagging metrics with [tag].
+     */
+    protected void send(MessageProducer sender, Message msg, int deliveryMode, int priority, long timeToLive,
+        String tag) throws JMSException {
+
+        send(sender, msg, deliveryMode, priority, timeToLive, tag, JmsClock.nowMicros());
+    }
+
+    /**
+     * Like send(sender, msg, deliveryMode, priority, timeToLive, tag), with a send stamp of [sentMicros].
+     */
+    protected void send(MessageProducer sender, Message msg, int deliveryMode, int priority, long timeToLive,
+        String tag, long sentMicros) throws JMSException {
+
+        long start = System.nanoTime();
+        metrics.adjustInFlight(JmsMetrics.SEND, tag, 1);
+
+        try {
+            for (Map.Entry<String, Object> property : messageProperties.entrySet()) {
+                msg.setObjectProperty(property.getKey(), property.getValue());
+            }
+
+            msg.setLongProperty(SENT_MICROS_PROPERTY, sentMicros);
+            sender.send(msg, deliveryMode, priority, timeToLive);
+            metrics.recordLatency(JmsMetrics.SEND, tag, System.nanoTime() - start);
+        } catch (JMSException e) {
+            metrics.recordError(JmsMetrics.SEND, tag);
+            throw e;
+        } finally {
+            metrics.adjustInFlight(JmsMetrics.SEND, tag, -1);
+        }
+    }
+
+    /**
+     * Send a text message over the queue.
+     */
+    public void sendTextMessage(String text) throws NamingException, JMSException {
+        sendTextMessage(text, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Send a text message over the queue, overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void sendTextMessage(final String text, final int deliveryMode, final int priority, final long timeToLive)
+        throws NamingException, JMSException {
+
+        JmsOperation<Void> send = () -> {
+            validateProducer();
+            send(producer, createTextMessage(session, text), deliveryMode, priority, timeToLive);
+            return null;
+        };
+
+        if (outbox == null) {
+            sendWithReconnect(send);
+            return;
+        }
+
+        // Line up behind whatever the outbox is still forwarding, so messages stay in order.
+        if (outbox.getPendingCount() > 0) {
+            storeInOutbox(text, deliveryMode, priority, timeToLive);
+            return;
+        }
+
+        try {
+            withReconnect(send);
+        } catch (JMSException e) {
+
+            if (!isConnectionFailure(e)) {
+                throw e;
+            }
+
+            resetConnection();
+            storeInOutbox(text, deliveryMode, priority, timeToLive);
+        }
+    }
+
+    /**
+     * Send many text messages over the queue using a transacted session, committing once per batch
+     * instead of once per message. Batches are capped by setMaxBatchSize() and setMaxBatchBytes().
+     * If this throws, the current batch is rolled back but earlier batches have already been committed.
+     * With setReconnectPolicy(), sending resumes from the first uncommitted message after reconnecting.
+     * A commit whose reply was lost in the outage is sent again, so expect the odd duplicate.
+     *
+     * @return the number of messages sent
+     */
+    public int sendTextMessages(Collection<String> texts) throws NamingException, JMSException {
+        return sendTextMessages(texts, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendTextMessages(texts), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public int sendTextMessages(Collection<String> texts, final int deliveryMode, final int priority,
+        final long timeToLive) throws NamingException, JMSException {
+
+        final List<String> list = texts instanceof List ? (List<String>) texts : new ArrayList<>(texts);
+        final int[] committed = { 0 };
+
+        withReconnect(() -> {
+            sendTextBatches(list, committed, deliveryMode, priority, timeToLive);
+            return null;
+        });
+
+        return list.size();
+    }
+
+    /**
+     * Send [texts] from index [committed] on, advancing [committed] as each batch is committed.
+     */
+    private void sendTextBatches(List<String> texts, int[] committed, int deliveryMode, int priority,
+        long timeToLive) throws NamingException, JMSException {
+
+        validateConnection();
+
+        CachedSession txSession = borrowSession(true, Session.SESSION_TRANSACTED);
+
+        try {
+
+            MessageProducer txProducer = txSession.getProducer(destination);
+            int batchSize = 0;
+            long batchBytes = 0;
+
+            for (String text : texts.subList(committed[0], texts.size())) {
+
+                long size = utf8Length(text);
+
+                if (batchSize > 0 && (batchSize >= maxBatchSize || batchBytes + size > maxBatchBytes)) {
+                    txSession.getSession().commit();
+                    committed[0] += batchSize;
+                    batchSize = 0;
+                    batchBytes = 0;
+                }
+
+                send(txProducer, createTextMessage(txSession.getSession(), text), deliveryMode, priority, timeToLive);
+                batchSize++;
+                batchBytes += size;
+            }
+
+            if (batchSize > 0) {
+                txSession.getSession().commit();
+                committed[0] += batchSize;
+            }
+
+        } finally {
+            // Rolls back anything uncommitted before the session is reused.
+            pooledConnection.releaseSession(txSession);
+        }
+    }
+
+    /**
+     * Size of [text] encoded as UTF-8, without encoding it. 0 for null.
+     */
+    static long utf8Length(String text) {
+
+        if (text == null) {
+            return 0;
+        }
+
+        long length = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired - encoded as '?'.
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Max number of messages committed together by sendTextMessages(). Defaults to 500.
+     */
+    public JmsConnector setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Max payload size (in UTF-8 bytes) committed together by sendTextMessages(). Defaults to 1 MB.
+     * A single message bigger than this is still sent, in a batch of its own.
+     */
+    public JmsConnector setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Lazy-load the JMS connection and the sender used for asynchronous sends.
+     */
+    protected void validateAsyncSender() throws JMSException, NamingException {
+
+        validateConnection();
+
+        if (asyncSender == null) {
+            asyncSender = new JmsAsyncSender(pooledConnection, asyncSendWindow);
+        }
+    }
+
+    /**
+     * validateAsyncSender(), reconnecting first if needed. Async sends themselves aren't retried - a failed one
+     * completes its future exceptionally, and the caller decides what to do with it.
+     */
+    private void validateAsyncSenderWithReconnect() throws JMSException, NamingException {
+        withReconnect(() -> {
+            validateAsyncSender();
+            return null;
+        });
+    }
+
+    /**
+     * Send a text message over the queue without waiting for the broker.
+     * The returned future completes when the broker has accepted the message, or completes exceptionally
+     * if the send failed. Blocks only if too many async sends are already pending (see setAsyncSendWindow()).
+     */
+    public CompletableFuture<Void> sendTextMessageAsync(String text) throws NamingException, JMSException {
+        return sendTextMessageAsync(text, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendTextMessageAsync(text), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public CompletableFuture<Void> sendTextMessageAsync(final String text, final int deliveryMode,
+        final int priority, final long timeToLive) throws NamingException, JMSException {
+
+        if (outbox != null && outbox.getPendingCount() > 0) {
+            storeInOutbox(text, deliveryMode, priority, timeToLive);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        try {
+            validateAsyncSenderWithReconnect();
+        } catch (JMSException e) {
+
+            if (outbox == null || !isConnectionFailure(e)) {
+                throw e;
+            }
+
+            resetConnection();
+            storeInOutbox(text, deliveryMode, priority, timeToLive);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        JmsAsyncSender.SendTask task = asyncSession -> send(
+            asyncSession.getProducer(destination),
+            createTextMessage(asyncSession.getSession(), text),
+            deliveryMode, priority, timeToLive);
+
+        if (outbox == null) {
+            return asyncSender.send(task);
+        }
+
+        CompletableFuture<Void> future = asyncSender.trySend(task);
+
+        if (future == null) {
+            // The send window is full - spill to disk rather than block the caller.
+            storeInOutbox(text, deliveryMode, priority, timeToLive);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return future;
+    }
+
+    /**
+     * Store-and-forward for text sends: while the broker can't be reached, sendTextMessage() and
+     * sendTextMessageAsync() write to [outbox] on local disk instead of failing, and async sends spill there
+     * instead of blocking when the send window is full. The outbox forwards them in the background, and later
+     * sends queue up behind them until it has caught up, so order is kept.
+     * Stored messages keep this connector's message properties (see setMessageProperty()), but are compressed per
+     * the forwarder's settings, and get the forwarder's own message properties too, if it has any.
+     * Futures for stored async sends complete once the message is on disk. The outbox is shared, not owned -
+     * close it separately. Defaults to null (no outbox).
+     */
+    public JmsConnector setOutbox(JmsOutbox outbox) {
+        this.outbox = outbox;
+        return this;
+    }
+
+    private void storeInOutbox(String text, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        try {
+            outbox.append(text, deliveryMode, priority, timeToLive, messageProperties);
+        } catch (IOException e) {
+            JMSException jmsE = new JMSException("Couldn't store the message in the outbox: " + e.getMessage());
+            jmsE.setLinkedException(e);
+            throw jmsE;
+        }
+    }
+
+    /**
+     * Send outbox records in a single transaction. Called on the outbox's forwarder thread.
+     */
+    void forward(final List<JmsOutbox.Record> records) throws NamingException, JMSException {
+
+        withReconnect(() -> {
+
+            validateConnection();
+
+            CachedSession txSession = borrowSession(true, Session.SESSION_TRANSACTED);
+
+            try {
+
+                MessageProducer txProducer = txSession.getProducer(destination);
+
+                for (JmsOutbox.Record record : records) {
+
+                    Message msg = createTextMessage(txSession.getSession(), record.text);
+
+                    for (Map.Entry<String, Object> property : record.properties.entrySet()) {
+                        msg.setObjectProperty(property.getKey(), property.getValue());
+                    }
+
+                    // Stamped with when it was stored, so latency metrics include the time spent in the outbox.
+                    send(txProducer, msg, record.deliveryMode, record.priority, record.timeToLive, metricsTag(),
+                        record.appendedMillis * 1000);
+                }
+
+                txSession.getSession().commit();
+                return null;
+
+            } finally {
+                pooledConnection.releaseSession(txSession);
+            }
+        });
+    }
+
+    /**
+     * Max number of async sends that may be pending before sendTextMessageAsync() / sendMapMessageAsync() block.
+     * Defaults to 1000. Must be called before the first async send.
+     */
+    public JmsConnector setAsyncSendWindow(int asyncSendWindow) {
+        if (asyncSendWindow < 1) {
+            throw new IllegalArgumentException("asyncSendWindow must be at least 1: " + asyncSendWindow);
+        }
+        this.asyncSendWindow = asyncSendWindow;
+        return this;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // Methods for building and sending a MapMessage:
+
+    protected JmsMapMessage.Builder mapBuilder;
+
+    /**
+     * A Builder-like method used to create, build, and send a MapMessage over the queue.
+     * Chain calls to addMap() methods, then finish with sendMapMessage().
+     * Example usage: startMapMessage().addMapString("name", "luke").sendMapMessage();
+     * Entries are collected in a JmsMapMessage.Builder and only copied into a MapMessage when it's sent.
+     * This keeps the message being built in the connector - use JmsMapMessage.builder() to build on other threads,
+     * or for types other than strings and ints.
+     */
+    public JmsConnector startMapMessage() throws JMSException, NamingException {
+        mapBuilder = JmsMapMessage.builder();
+        return this;
+    }
+
+    /**
+     * While creating a map message, add an entire map of strings.
+     */
+    public JmsConnector addMapStringMap(Map<String, String> strMap) throws JMSException {
+        validateMapMessage();
+        mapBuilder.addStringMap(strMap);
+        return this;
+    }
+
+    /**
+     * While creating a map message, add a string.
+     */
+    public JmsConnector addMapString(String key, String val) throws JMSException {
+        validateMapMessage();
+        mapBuilder.addString(key, val);
+        return this;
+    }
+
+    /**
+     * While creating a map message, add an int.
+     */
+    public JmsConnector addMapInt(String key, int val) throws JMSException {
+        validateMapMessage();
+        mapBuilder.addInt(key, val);
+        return this;
+    }
+
+    /**
+     * Send the built map message. Must call startMapMessage() and build with addMap() methods before ending
+     * with a call to this.
+     * Example usage: startMapMessage().addMapString("name", "luke").sendMapMessage();
+     */
+    public void sendMapMessage() throws NamingException, JMSException {
+        sendMapMessage(deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendMapMessage(), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void sendMapMessage(int deliveryMode, int priority, long timeToLive) throws NamingException, JMSException {
+        validateMapMessage();
+
+        JmsMapMessage map = mapBuilder.build();
+        mapBuilder = null;
+        sendMapMessage(map, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Send a map message built with the standalone, thread-safe JmsMapMessage.builder().
+     * Example usage: sendMapMessage(JmsMapMessage.builder().addString("name", "luke").build());
+     */
+    public void sendMapMessage(JmsMapMessage map) throws NamingException, JMSException {
+        sendMapMessage(map, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendMapMessage(map), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void sendMapMessage(final JmsMapMessage map, final int deliveryMode, final int priority,
+        final long timeToLive) throws NamingException, JMSException {
+
+        sendWithReconnect(() -> {
+            validateProducer();
+            MapMessage msg = session.createMapMessage();
+            map.writeTo(msg);
+            send(producer, msg, deliveryMode, priority, timeToLive);
+            return null;
+        });
+    }
+
+    /**
+     * Like sendMapMessage(map), but doesn't wait for the broker - see sendTextMessageAsync().
+     */
+    public CompletableFuture<Void> sendMapMessageAsync(JmsMapMessage map) throws NamingException, JMSException {
+        return sendMapMessageAsync(map, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendMapMessageAsync(map), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public CompletableFuture<Void> sendMapMessageAsync(final JmsMapMessage map, final int deliveryMode,
+        final int priority, final long timeToLive) throws NamingException, JMSException {
+
+        validateAsyncSenderWithReconnect();
+
+        return asyncSender.send(asyncSession -> {
+            MapMessage msg = asyncSession.getSession().createMapMessage();
+            map.writeTo(msg);
+            send(asyncSession.getProducer(destination), msg, deliveryMode, priority, timeToLive);
+        });
+    }
+
+    /**
+     * Like sendMapMessage(), but doesn't wait for the broker - see sendTextMessageAsync().
+     * Example usage: startMapMessage().addMapString("name", "luke").sendMapMessageAsync();
+     */
+    public CompletableFuture<Void> sendMapMessageAsync() throws NamingException, JMSException {
+        return sendMapMessageAsync(deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendMapMessageAsync(), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public CompletableFuture<Void> sendMapMessageAsync(int deliveryMode, int priority, long timeToLive)
+        throws NamingException, JMSException {
+
+        validateMapMessage();
+
+        JmsMapMessage map = mapBuilder.build();
+        mapBuilder = null;
+        return sendMapMessageAsync(map, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * When building a map message, make sure they're calling the build methods in order...
+     */
+    private void validateMapMessage() {
+        if (mapBuilder == null) {
+            throw new RuntimeException("You must call startMapMessage() before calling addMap() methods or sendMapMessage().");
+        }
+    }
+
+    // End MapMessage-specific builder / sender methods.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Methods for sending and reading binary payloads:
+
+    /**
+     * Send the remaining bytes of [bytes] as a BytesMessage. The buffer's position isn't changed.
+     * Heap buffers are copied straight from their backing array.
+     */
+    public void sendBytes(ByteBuffer bytes) throws NamingException, JMSException {
+        sendBytes(bytes, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendBytes(bytes), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void sendBytes(final ByteBuffer bytes, final int deliveryMode, final int priority, final long timeToLive)
+        throws NamingException, JMSException {
+
+        withReconnect(() -> {
+            validateProducer();
+            send(producer, createBytesMessage(session, bytes), deliveryMode, priority, timeToLive);
+            return null;
+        });
+    }
+
+    /**
+     * Send [length] bytes of [bytes], starting at [offset], as a BytesMessage.
+     */
+    public void sendBytes(byte[] bytes, int offset, int length) throws NamingException, JMSException {
+        sendBytes(bytes, offset, length, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendBytes(bytes, offset, length), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void sendBytes(final byte[] bytes, final int offset, final int length, final int deliveryMode,
+        final int priority, final long timeToLive) throws NamingException, JMSException {
+
+        withReconnect(() -> {
+            validateProducer();
+            send(producer, createBytesMessage(session, bytes, offset, length), deliveryMode, priority, timeToLive);
+            return null;
+        });
+    }
+
+    /**
+     * Write the remaining bytes of [bytes] into [msg]. The buffer's position isn't changed.
+     */
+    public static void writeBytes(BytesMessage msg, ByteBuffer bytes) throws JMSException {
+
+        if (bytes.hasArray()) {
+            msg.writeBytes(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+
+        // Direct buffer - go through the scratch array.
+        ByteBuffer from = bytes.duplicate();
+        byte[] scratch = SCRATCH.get();
+
+        while (from.hasRemaining()) {
+            int chunk = Math.min(scratch.length, from.remaining());
+            from.get(scratch, 0, chunk);
+            msg.writeBytes(scratch, 0, chunk);
+        }
+    }
+
+    /**
+     * Read the next part of a BytesMessage body into [into], filling at most its remaining space and advancing its
+     * position. Returns the number of bytes read, or -1 at the end of the body.
+     * Call it in a loop to stream a big body through a small, reused buffer.
+     */
+    public static int readBytes(BytesMessage msg, ByteBuffer into) throws JMSException {
+
+        if (into.hasArray()) {
+
+            int read = readBytes(msg, into.array(), into.arrayOffset() + into.position(), into.remaining());
+
+            if (read > 0) {
+                into.position(into.position() + read);
+            }
+
+            return read;
+        }
+
+        byte[] scratch = SCRATCH.get();
+        int read = msg.readBytes(scratch, Math.min(scratch.length, into.remaining()));
+
+        if (read > 0) {
+            into.put(scratch, 0, read);
+        }
+
+        return read;
+    }
+
+    /**
+     * Read the next part of a BytesMessage body into [length] bytes of [into], starting at [offset].
+     * Returns the number of bytes read, or -1 at the end of the body.
+     */
+    public static int readBytes(BytesMessage msg, byte[] into, int offset, int length) throws JMSException {
+
+        if (offset == 0) {
+            return msg.readBytes(into, length);
+        }
+
+        // BytesMessage can only read into the start of an array.
+        byte[] scratch = SCRATCH.get();
+        int read = msg.readBytes(scratch, Math.min(scratch.length, length));
+
+        if (read > 0) {
+            System.arraycopy(scratch, 0, into, offset, read);
+        }
+
+        return read;
+    }
+
+    /**
+     * Send the contents of [in] as an ActiveMQ BlobMessage. The payload is uploaded to the broker's blob store
+     * (see ActiveMQ's jms.blobTransferPolicy.uploadUrl) while it's read, and only a small message pointing to it
+     * goes through the queue - so multi-megabyte payloads never have to fit on the heap.
+     * The stream isn't closed. It can only be read once, so this isn't retried by setReconnectPolicy().
+     */
+    public void sendStream(InputStream in) throws NamingException, JMSException {
+        sendStream(in, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendStream(in), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void sendStream(InputStream in, int deliveryMode, int priority, long timeToLive)
+        throws NamingException, JMSException {
+
+        validateProducer();
+        send(producer, activeMQSession().createBlobMessage(in), deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendStream(), for a file.
+     */
+    public void sendFile(File file) throws NamingException, JMSException {
+        sendFile(file, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendFile(file), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void sendFile(final File file, final int deliveryMode, final int priority, final long timeToLive)
+        throws NamingException, JMSException {
+
+        withReconnect(() -> {
+            validateProducer();
+            send(producer, activeMQSession().createBlobMessage(file), deliveryMode, priority, timeToLive);
+            return null;
+        });
+    }
+
+    private ActiveMQSession activeMQSession() throws JMSException {
+
+        if (!(session instanceof ActiveMQSession)) {
+            throw new JMSException("Blob messages need an ActiveMQ connection.");
+        }
+
+        return (ActiveMQSession) session;
+    }
+
+    /**
+     * Stream the payload of a received message: the blob behind a BlobMessage (downloaded while it's read),
+     * or the body of a BytesMessage. The caller must close the stream.
+     */
+    public static InputStream openStream(Message msg) throws JMSException, IOException {
+
+        if (msg instanceof BlobMessage) {
+            return ((BlobMessage) msg).getInputStream();
+        }
+
+        if (msg instanceof BytesMessage) {
+            return new BytesMessageInputStream((BytesMessage) msg);
+        }
+
+        throw new MessageFormatException("Not a BlobMessage or BytesMessage: " + msg.getClass().getName());
+    }
+
+    /**
+     * Reads a BytesMessage body as it goes, rather than copying it into one big array.
+     */
+    private static final class BytesMessageInputStream extends InputStream {
+
+        private final BytesMessage msg;
+
+        BytesMessageInputStream(BytesMessage msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] into, int offset, int length) throws IOException {
+
+            if (length == 0) {
+                return 0;
+            }
+
+            try {
+                return readBytes(msg, into, offset, length);
+            } catch (JMSException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // End binary payload methods.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Compression:
+
+    /**
+     * Compress text and bytes payloads of at least [thresholdBytes] (characters, for text) with [compressor].
+     * Compressed messages go out as BytesMessages marked with COMPRESSION_PROPERTY; consume() and listen() hand
+     * them back decompressed, as the TextMessage or BytesMessage they were sent as. Payloads that don't shrink
+     * are sent as they are. Also registers [compressor] for decompression - see registerCompressor().
+     * Example usage: jmsConn.setCompression(new DeflateCompressor(), 4096);
+     */
+    public JmsConnector setCompression(MessageCompressor compressor, int thresholdBytes) {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("thresholdBytes can't be negative: " + thresholdBytes);
+        }
+        registerCompressor(compressor);
+        this.compressor = compressor;
+        this.compressionThreshold = thresholdBytes;
+        return this;
+    }
+
+    /**
+     * Largest size, in bytes, decompress() inflates a message to - bigger ones fail with a MessageFormatException.
+     * Protects consumers from small messages crafted to inflate to gigabytes. Applies to the whole process.
+     * Defaults to 64 MB.
+     */
+    public static void setMaxDecompressedBytes(int maxDecompressedBytes) {
+        if (maxDecompressedBytes < 1) {
+            throw new IllegalArgumentException("maxDecompressedBytes must be at least 1: " + maxDecompressedBytes);
+        }
+        JmsConnector.maxDecompressedBytes = maxDecompressedBytes;
+    }
+
+    /**
+     * Make a compression algorithm known to consumers in this process, by name. DeflateCompressor is built in.
+     */
+    public static void registerCompressor(MessageCompressor compressor) {
+        COMPRESSORS.put(compressor.getName(), compressor);
+    }
+
+    /**
+     * A TextMessage, or a compressed BytesMessage if compression is on and worth it.
+     */
+    protected Message createTextMessage(Session msgSession, String text) throws JMSException {
+
+        if (compressor == null || text == null || text.length() < compressionThreshold) {
+            return msgSession.createTextMessage(text);
+        }
+
+        CodecBuffers.Output utf8 = CodecBuffers.output();
+        utf8.writeUtf8(text);
+
+        BytesMessage msg = createCompressedMessage(msgSession, utf8.array(), 0, utf8.size(), true);
+        CodecBuffers.release(utf8);
+
+        return msg != null ? msg : msgSession.createTextMessage(text);
+    }
+
+    /**
+     * A BytesMessage holding the remaining bytes of [bytes], compressed if compression is on and worth it.
+     */
+    protected BytesMessage createBytesMessage(Session msgSession, ByteBuffer bytes) throws JMSException {
+
+        BytesMessage msg = null;
+
+        if (compressor != null && bytes.remaining() >= compressionThreshold) {
+
+            if (bytes.hasArray()) {
+                msg = createCompressedMessage(msgSession,
+                    bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), false);
+            } else {
+                // The compressors want an array.
+                CodecBuffers.Output copy = CodecBuffers.output();
+                copy.write(bytes);
+                msg = createCompressedMessage(msgSession, copy.array(), 0, copy.size(), false);
+                CodecBuffers.release(copy);
+            }
+        }
+
+        if (msg == null) {
+            msg = msgSession.createBytesMessage();
+            writeBytes(msg, bytes);
+        }
+
+        return msg;
+    }
+
+    /**
+     * A BytesMessage holding [length] bytes of [bytes], compressed if compression is on and worth it.
+     */
+    protected BytesMessage createBytesMessage(Session msgSession, byte[] bytes, int offset, int length)
+        throws JMSException {
+
+        BytesMessage msg = null;
+
+        if (compressor != null && length >= compressionThreshold) {
+            msg = createCompressedMessage(msgSession, bytes, offset, length, false);
+        }
+
+        if (msg == null) {
+            msg = msgSession.createBytesMessage();
+            msg.writeBytes(bytes, offset, length);
+        }
+
+        return msg;
+    }
+
+    /**
+     * Compress [length] bytes of [data] into a marked BytesMessage, or return null if it didn't get any smaller.
+     */
+    private BytesMessage createCompressedMessage(Session msgSession, byte[] data, int offset, int length,
+        boolean isText) throws JMSException {
+
+        CodecBuffers.Output compressed = CodecBuffers.spareOutput();
+
+        try {
+            compressor.compress(data, offset, length, compressed);
+        } catch (IOException e) {
+            throw CodecBuffers.formatException("Couldn't compress the message", e);
+        }
+
+        if (compressed.size() >= length) {
+            CodecBuffers.release(compressed);
+            return null;
+        }
+
+        BytesMessage msg = msgSession.createBytesMessage();
+        compressed.writeTo(msg);
+        CodecBuffers.release(compressed);
+
+        msg.setStringProperty(COMPRESSION_PROPERTY, compressor.getName());
+        msg.setIntProperty(UNCOMPRESSED_SIZE_PROPERTY, length);
+
+        if (isText) {
+            msg.setBooleanProperty(COMPRESSED_TEXT_PROPERTY, true);
+        }
+
+        return msg;
+    }
+
+    /**
+     * If [msg] was compressed by the sender, a decompressed view of it: a TextMessage or BytesMessage, as it was
+     * sent. Otherwise [msg] itself. consume() and listen() already do this.
+     */
+    public static Message decompress(Message msg) throws JMSException {
+
+        if (!(msg instanceof BytesMessage) || !msg.propertyExists(COMPRESSION_PROPERTY)) {
+            return msg;
+        }
+
+        String name = msg.getStringProperty(COMPRESSION_PROPERTY);
+        MessageCompressor decompressor = COMPRESSORS.get(name);
+
+        if (decompressor == null) {
+            throw new MessageFormatException("Unknown compression: " + name + " - see registerCompressor().");
+        }
+
+        // Trust the sender's size only to lower the limit.
+        int limit = maxDecompressedBytes;
+
+        if (msg.propertyExists(UNCOMPRESSED_SIZE_PROPERTY)) {
+            limit = Math.min(limit, msg.getIntProperty(UNCOMPRESSED_SIZE_PROPERTY));
+        }
+
+        CodecBuffers.Input compressed = CodecBuffers.input((BytesMessage) msg);
+        CodecBuffers.Output out = decompress(decompressor, compressed.array(), compressed.length(), limit);
+
+        Message decompressed = msg.propertyExists(COMPRESSED_TEXT_PROPERTY)
+            ? new DecompressedMessage.Text(msg, new String(out.array(), 0, out.size(), StandardCharsets.UTF_8))
+            : new DecompressedMessage.Bytes(msg, out.toByteArray());
+
+        CodecBuffers.release(out);
+        return decompressed;
+    }
+
+    /**
+     * Decompress [length] bytes of [data], failing as soon as the output grows past [limit] bytes.
+     */
+    static CodecBuffers.Output decompress(MessageCompressor decompressor, byte[] data, int length, final int limit)
+        throws MessageFormatException {
+
+        final CodecBuffers.Output out = CodecBuffers.output();
+
+        OutputStream limited = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int count) throws IOException {
+                if (count > limit - out.size()) {
+                    throw new IOException("Decompressed size is over the limit of " + limit + " bytes.");
+                }
+                out.write(bytes, offset, count);
+            }
+        };
+
+        try {
+            decompressor.decompress(data, 0, length, limited);
+            return out;
+        } catch (IOException e) {
+            CodecBuffers.release(out);
+            throw CodecBuffers.formatException("Couldn't decompress the message", e);
+        }
+    }
+
+    // End compression.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Methods for sending and receiving objects through a MessageCodec:
+
+    /**
+     * The codec used by send(obj) and consume(type). Defaults to a SerializableCodec.
+     */
+    public JmsConnector setCodec(MessageCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Encode [obj] with this connector's codec and send it as a BytesMessage.
+     */
+    public void send(Object obj) throws NamingException, JMSException {
+        send(obj, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like send(obj), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void send(final Object obj, final int deliveryMode, final int priority, final long timeToLive)
+        throws NamingException, JMSException {
+
+        withReconnect(() -> {
+            validateProducer();
+            BytesMessage msg = session.createBytesMessage();
+            msg.setStringProperty(MessageCodec.CODEC_PROPERTY, codec.getName());
+            codec.encode(obj, msg);
+            send(producer, msg, deliveryMode, priority, timeToLive);
+            return null;
+        });
+    }
+
+    /**
+     * Wait for a message to arrive on the queue, and decode it as a [type]. This call blocks forever.
+     */
+    public <T> T consume(Class<T> type) throws NamingException, JMSException {
+        return decode(consume(), type);
+    }
+
+    /**
+     * Like consume(type), giving up after [timeoutSecs] seconds. Returns null if nothing arrived.
+     */
+    public <T> T consume(Class<T> type, int timeoutSecs) throws NamingException, JMSException {
+        return decode(consume(timeoutSecs), type);
+    }
+
+    /**
+     * Decode a message sent with send(obj), e.g. one handed to a listen() handler.
+     * Returns null for a null message.
+     */
+    public <T> T decode(Message msg, Class<T> type) throws JMSException {
+
+        if (msg == null) {
+            return null;
+        }
+
+        if (!(msg instanceof BytesMessage)) {
+            throw new MessageFormatException("Not a BytesMessage: " + msg.getClass().getName());
+        }
+
+        String encoding = msg.getStringProperty(MessageCodec.CODEC_PROPERTY);
+
+        if (encoding != null && !encoding.equals(codec.getName())) {
+            throw new MessageFormatException("Message was encoded with " + encoding + ", not " + codec.getName() + ".");
+        }
+
+        return codec.decode((BytesMessage) msg, type);
+    }
+
+    // End codec methods.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Methods for talking to other destinations over the same connection and session:
+
+    /**
+     * The destination called [name], looked up once and cached until the connection is reset.
+     * Names are resolved like the constructor's queue name: through JNDI, or as a queue (or topic, see asTopic()).
+     */
+    protected Destination namedDestination(String name) throws NamingException, JMSException {
+
+        Destination named = namedDestinations.get(name);
+
+        if (named == null) {
+            named = lookupDestination(name);
+            namedDestinations.put(name, named);
+        }
+
+        return named;
+    }
+
+    /**
+     * Send a text message to the destination called [destinationName] rather than this connector's own.
+     * Any number of destinations share this connector's connection and session, and producers are cached per
+     * destination, so one connector can serve every queue a service talks to.
+     */
+    public void sendTextMessageTo(String destinationName, String text) throws NamingException, JMSException {
+        sendTextMessageTo(destinationName, text, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendTextMessageTo(destinationName, text), overriding this connector's delivery mode, priority and
+     * time-to-live.
+     */
+    public void sendTextMessageTo(final String destinationName, final String text, final int deliveryMode,
+        final int priority, final long timeToLive) throws NamingException, JMSException {
+
+        sendWithReconnect(() -> {
+            validateConnection();
+            MessageProducer to = cachedSession.getProducer(namedDestination(destinationName));
+            send(to, createTextMessage(session, text), deliveryMode, priority, timeToLive, destinationName);
+            return null;
+        });
+    }
+
+    /**
+     * Send a map message to the destination called [destinationName] - see sendTextMessageTo().
+     */
+    public void sendMapMessageTo(String destinationName, JmsMapMessage map) throws NamingException, JMSException {
+        sendMapMessageTo(destinationName, map, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like sendMapMessageTo(destinationName, map), overriding this connector's delivery mode, priority and
+     * time-to-live.
+     */
+    public void sendMapMessageTo(final String destinationName, final JmsMapMessage map, final int deliveryMode,
+        final int priority, final long timeToLive) throws NamingException, JMSException {
+
+        sendWithReconnect(() -> {
+            validateConnection();
+            MessageProducer to = cachedSession.getProducer(namedDestination(destinationName));
+            MapMessage msg = session.createMapMessage();
+            map.writeTo(msg);
+            send(to, msg, deliveryMode, priority, timeToLive, destinationName);
+            return null;
+        });
+    }
+
+    /**
+     * Wait for a message to arrive on the destination called [destinationName], giving up after [timeoutSecs]
+     * seconds (0 waits forever). The consumer stays open for the next call, so with many destinations, consider
+     * a small setPrefetchSize() - otherwise each one holds on to messages other consumers could be working on.
+     * Durable subscriptions and consumer groups only apply to this connector's own destination.
+     */
+    public Message consumeFrom(final String destinationName, final int timeoutSecs)
+        throws NamingException, JMSException {
+
+        return withReconnect(() -> receive(namedConsumer(destinationName),
+            timeoutSecs > 0 ? timeoutSecs * 1000L : WAIT_FOREVER, destinationName));
+    }
+
+    /**
+     * Pull a message off the destination called [destinationName] without blocking - see consumeFrom().
+     * Returns null if there's nothing there.
+     */
+    public Message consumeNoWaitFrom(final String destinationName) throws NamingException, JMSException {
+        return withReconnect(() -> receive(namedConsumer(destinationName), 0, destinationName));
+    }
+
+    private MessageConsumer namedConsumer(String destinationName) throws NamingException, JMSException {
+
+        validateConnection();
+
+        MessageConsumer named = namedConsumers.get(destinationName);
+
+        if (named == null) {
+            named = session.createConsumer(consumerDestination(namedDestination(destinationName)));
+            namedConsumers.put(destinationName, named);
+        }
+
+        return named;
+    }
+
+    // End named destination methods.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Methods for topics (publish / subscribe):
+
+    /**
+     * Use the destination name given to the constructor as a topic rather than a queue, so every subscriber
+     * gets a copy of each message. Only needed for direct config - with JNDI, the "topic.*" entry decides.
+     * Must be called before the connector is first used.
+     */
+    public JmsConnector asTopic() {
+        this.useTopic = true;
+        return this;
+    }
+
+    /**
+     * Consume from a durable subscription to the topic: messages published while nobody is consuming are kept
+     * for the subscription until it's consumed from again, or unsubscribe() is called. The broker identifies
+     * the subscription by [clientId] plus [subscriptionName], and allows one connection per client ID - so
+     * connectors with a client ID get a pooled connection of their own, and JmsConnectionPool.setMaxSize() must
+     * stay at 1. A subscription has one consumer at a time, so use only one of consume(), consumeBatch() and
+     * listen(..., 1) on it, and no selectors (they'd reset the subscription). Must be called before the connector
+     * is first used.
+     */
+    public JmsConnector setDurableSubscription(String clientId, String subscriptionName) {
+        this.clientId = clientId;
+        this.subscriptionName = subscriptionName;
+        return this;
+    }
+
+    /**
+     * Consume as part of [group] from an ActiveMQ virtual topic (a topic named "VirtualTopic.*"): each group gets
+     * its own copy of every message published to the topic, shared out between the group's consumers like a queue.
+     * Consumers read from the group's queue, "Consumer.[group].VirtualTopic.*", which is durable - messages wait
+     * there while the group is down. Publishing still goes to the topic, so one send feeds every group.
+     * Applies to consumers created after this call.
+     * Example usage: new JmsConnector(url, "VirtualTopic.Orders").asTopic().setConsumerGroup("billing");
+     */
+    public JmsConnector setConsumerGroup(String group) {
+        this.consumerGroup = group;
+        return this;
+    }
+
+    /**
+     * Delete the durable subscription set with setDurableSubscription(), along with any messages waiting in it.
+     * Closes this connector's consumers first, since a subscription in use can't be deleted.
+     */
+    public void unsubscribe() throws NamingException, JMSException {
+
+        if (subscriptionName == null) {
+            throw new IllegalStateException("No durable subscription - see setDurableSubscription().");
+        }
+
+        withReconnect(() -> {
+
+            validateConnection();
+
+            if (consumer != null) {
+                consumer.close();
+                consumer = null;
+            }
+
+            if (batchConsumer != null) {
+                batchConsumer.close();
+                batchConsumer = null;
+            }
+
+            session.unsubscribe(subscriptionName);
+            return null;
+        });
+    }
+
+    // End topic methods.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Methods for browsing the queue without consuming:
+
+    /**
+     * Look at the messages on the queue, oldest first, without consuming them - so nothing is removed or
+     * reordered. Messages are fetched lazily as the stream is read, a prefetch window (see setPrefetchSize())
+     * at a time, so memory use doesn't grow with the queue, and limit() keeps sampling a big queue cheap.
+     * The stream is a snapshot in the broker's own terms: messages sent or consumed meanwhile may or may not show.
+     * Browsing uses a session of its own, so close the stream (try-with-resources) before closing this connector.
+     */
+    public Stream<Message> browse() throws NamingException, JMSException {
+        return browse(null);
+    }
+
+    /**
+     * Like browse(), only including messages that match the JMS message [selector] (null for all of them).
+     */
+    public Stream<Message> browse(String selector) throws NamingException, JMSException {
+        return openBrowser(selector).map(msg -> {
+            try {
+                return decompress(msg);
+            } catch (JMSException e) {
+                throw new RuntimeException("Couldn't decompress message", e);
+            }
+        });
+    }
+
+    /**
+     * Number of messages on the queue, found by browsing it - see browse(). Message bodies aren't read,
+     * so this is cheaper than counting browse().
+     */
+    public long countMessages() throws NamingException, JMSException {
+        return countMessages(null);
+    }
+
+    /**
+     * Number of messages on the queue matching the JMS message [selector] (null for all of them).
+     */
+    public long countMessages(String selector) throws NamingException, JMSException {
+        try (Stream<Message> messages = openBrowser(selector)) {
+            return messages.count();
+        }
+    }
+
+    /**
+     * A lazy stream over a new QueueBrowser on a borrowed session. Closing the stream closes the browser
+     * and hands the session back.
+     */
+    private Stream<Message> openBrowser(final String selector) throws NamingException, JMSException {
+
+        return withReconnect(() -> {
+
+            validateConnection();
+
+            Destination from = consumerDestination();
+
+            if (!(from instanceof Queue)) {
+                throw new InvalidDestinationException("Only queues can be browsed, not: " + from);
+            }
+
+            final PooledConnection owner = pooledConnection;
+            final CachedSession browseSession = borrowSession(false, Session.AUTO_ACKNOWLEDGE);
+            final QueueBrowser browser;
+            final Enumeration<?> messages;
+
+            try {
+                browser = browseSession.getSession().createBrowser((Queue) from, selector);
+            } catch (JMSException e) {
+                owner.releaseSession(browseSession);
+                throw e;
+            }
+
+            try {
+                messages = browser.getEnumeration();
+            } catch (JMSException e) {
+                closeBrowser(owner, browseSession, browser);
+                throw e;
+            }
+
+            Iterator<Message> iter = new Iterator<Message>() {
+
+                @Override
+                public boolean hasNext() {
+                    return messages.hasMoreElements();
+                }
+
+                @Override
+                public Message next() {
+                    return (Message) messages.nextElement();
+                }
+            };
+
+            int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, characteristics), false)
+                .onClose(() -> closeBrowser(owner, browseSession, browser));
+        });
+    }
+
+    /**
+     * Quietly close the browser, then give its session back to the connection's cache.
+     */
+    private static void closeBrowser(PooledConnection owner, CachedSession browseSession, QueueBrowser browser) {
+
+        try {
+            browser.close();
+        } catch (Exception e) {
+            // Don't hand a session with a half-closed browser to someone else.
+            browseSession.closeQuietly();
+            return;
+        }
+
+        owner.releaseSession(browseSession);
+    }
+
+    // End browsing methods.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Methods for request / reply:
+
+    /**
+     * Send a text request, and get a future for the reply. The reply comes back on a temporary queue shared
+     * by every request made over the same pooled connection, matched up by correlation ID, so many requests
+     * can be in flight at once without a consumer each. The future fails with a TimeoutException if no reply
+     * arrives within [timeoutMillis], and with a JMSException if the connection fails first.
+     * Repliers answer with reply(request, text).
+     */
+    public CompletableFuture<Message> request(String text, long timeoutMillis) throws NamingException, JMSException {
+        return request(text, timeoutMillis, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like request(text, timeoutMillis), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public CompletableFuture<Message> request(final String text, final long timeoutMillis, final int deliveryMode,
+        final int priority, final long timeToLive) throws NamingException, JMSException {
+
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be positive: " + timeoutMillis);
+        }
+
+        return withReconnect(() -> {
+
+            validateProducer();
+
+            JmsReplyQueue replies = pooledConnection.getReplyQueue();
+            String correlationId = replies.nextCorrelationId();
+
+            Message msg = createTextMessage(session, text);
+            msg.setJMSReplyTo(replies.getQueue());
+            msg.setJMSCorrelationID(correlationId);
+
+            // Wait for the reply before sending, in case it's quick.
+            CompletableFuture<Message> reply = replies.expect(correlationId, timeoutMillis);
+
+            try {
+                send(producer, msg, deliveryMode, priority, timeToLive);
+            } catch (JMSException e) {
+                reply.cancel(false);
+                throw e;
+            }
+
+            return reply;
+        });
+    }
+
+    /**
+     * Answer a message sent with request(), e.g. one handed to a listen() handler.
+     * The reply goes to the request's JMSReplyTo, with the request's correlation ID.
+     */
+    public void reply(Message request, String text) throws NamingException, JMSException {
+        reply(request, text, deliveryMode, priority, timeToLive);
+    }
+
+    /**
+     * Like reply(request, text), overriding this connector's delivery mode, priority and time-to-live.
+     */
+    public void reply(final Message request, final String text, final int deliveryMode, final int priority,
+        final long timeToLive) throws NamingException, JMSException {
+
+        final Destination replyTo = request.getJMSReplyTo();
+
+        if (replyTo == null) {
+            throw new InvalidDestinationException("Message has no JMSReplyTo: " + request.getJMSMessageID());
+        }
+
+        // By JMS convention, a request without a correlation ID is matched by its message ID.
+        String requestId = request.getJMSCorrelationID();
+        final String correlationId = requestId != null ? requestId : request.getJMSMessageID();
+
+        withReconnect(() -> {
+            validateConnection();
+            Message msg = createTextMessage(session, text);
+            msg.setJMSCorrelationID(correlationId);
+            send(cachedSession.getProducer(replyTo), msg, deliveryMode, priority, timeToLive);
+            return null;
+        });
+    }
+
+    // End request / reply methods.
+    //////////////////////////////////////////////////////////////////////
+
+    //////////////////////////////////////////////////////////////////////
+    // Reconnect handling:
+
+    /**
+     * Reconnect automatically when the broker connection fails, instead of passing the failure to the caller.
+     * Operations are retried on a fresh connection (rotating through the broker URLs given to the constructor)
+     * after a jittered, exponentially growing delay, up to the policy's max attempts. Sessions, producers and
+     * consumers are rebuilt along the way, and listen() containers reconnect by themselves.
+     * Must be called before the connector is first used. Defaults to null (no reconnecting).
+     */
+    public JmsConnector setReconnectPolicy(JmsReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+        return this;
+    }
+
+    /**
+     * During an outage, hold up to [outageBufferSize] sends in memory instead of blocking the caller through
+     * the reconnect backoff. Held sends go out, in order, ahead of the next operation once the broker is back.
+     * Once the buffer is full, sends fail as usual. Buffered sends are lost if the process dies, and close()
+     * only tries to flush them once - check getBufferedSendCount() first if that matters.
+     * Only text and map sends are buffered. Requires setReconnectPolicy(). Defaults to 0 (no buffering).
+     */
+    public JmsConnector setOutageBufferSize(int outageBufferSize) {
+        if (outageBufferSize < 0) {
+            throw new IllegalArgumentException("outageBufferSize can't be negative: " + outageBufferSize);
+        }
+        this.outageBufferSize = outageBufferSize;
+        return this;
+    }
+
+    /**
+     * Number of sends held back by an outage, waiting to be sent.
+     */
+    public int getBufferedSendCount() {
+        return outageBuffer.size();
+    }
+
+    /**
+     * Run [operation], reconnecting and retrying per the reconnect policy if the connection fails.
+     * Failures that aren't about the connection (e.g. a bad destination name) are passed on right away.
+     */
+    protected <T> T withReconnect(JmsOperation<T> operation) throws NamingException, JMSException {
+
+        if (reconnectPolicy == null) {
+            return operation.run();
+        }
+
+        for (int attempt = 0; ; attempt++) {
+
+            try {
+
+                prepareConnection();
+                T result = operation.run();
+                reconnectAttempts = 0;
+                return result;
+
+            } catch (JMSException e) {
+
+                if (!isConnectionFailure(e) || attempt >= reconnectPolicy.getMaxAttempts()) {
+                    throw e;
+                }
+
+                resetConnection();
+
+                try {
+                    Thread.sleep(reconnectPolicy.delayMillis(attempt));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Like withReconnect(), but with an outage buffer, a failed send is held back rather than retried.
+     * While the outage lasts, sends go straight to the buffer until the next reconnect attempt is due.
+     */
+    protected void sendWithReconnect(JmsOperation<Void> send) throws NamingException, JMSException {
+
+        if (reconnectPolicy == null || outageBufferSize == 0) {
+            withReconnect(send);
+            return;
+        }
+
+        if (!outageBuffer.isEmpty() && System.nanoTime() - nextReconnectNanos < 0) {
+            bufferSend(send, null);
+            return;
+        }
+
+        try {
+
+            prepareConnection();
+            send.run();
+            reconnectAttempts = 0;
+
+        } catch (JMSException e) {
+
+            if (!isConnectionFailure(e)) {
+                throw e;
+            }
+
+            resetConnection();
+            long delayMillis = reconnectPolicy.delayMillis(reconnectAttempts++);
+            nextReconnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            bufferSend(send, e);
+        }
+    }
+
+    private void bufferSend(JmsOperation<Void> send, JMSException cause) throws JMSException {
+
+        if (outageBuffer.size() >= outageBufferSize) {
+            throw cause != null ? cause : new JMSException("Outage buffer is full: " + outageBufferSize + " sends.");
+        }
+
+        outageBuffer.add(send);
+    }
+
+    /**
+     * Before an operation: drop a connection the provider has already reported dead (no point waiting for the
+     * operation to fail on it), then send anything held back by an earlier outage.
+     */
+    private void prepareConnection() throws NamingException, JMSException {
+
+        if (pooledConnection != null && !pooledConnection.isHealthy()) {
+            resetConnection();
+        }
+
+        while (!outageBuffer.isEmpty()) {
+            // Only removed once sent, so a failure here keeps it (and the order) for next time.
+            outageBuffer.peek().run();
+            outageBuffer.poll();
+        }
+    }
+
+    /**
+     * Whether [e] was the connection's fault: we couldn't connect at all, the provider has flagged the connection
+     * as failed, or [e] itself points at the transport. The provider flags the connection on its own thread, often
+     * after the operation in flight has already failed, so the exception has to be checked too.
+     */
+    protected boolean isConnectionFailure(JMSException e) {
+
+        if (pooledConnection == null || !pooledConnection.isHealthy()) {
+            return true;
+        }
+
+        // Walk the causes (and JMS linked exceptions), with a cap in case they loop.
+        Throwable cause = e;
+
+        for (int depth = 0; cause != null && depth < 16; depth++) {
+
+            if (cause instanceof ConnectionFailedException || cause instanceof ConnectionClosedException
+                || cause instanceof IOException) {
+                return true;
+            }
+
+            Throwable next = cause.getCause();
+
+            if (next == null && cause instanceof JMSException) {
+                next = ((JMSException) cause).getLinkedException();
+            }
+
+            cause = next;
+        }
+
+        return false;
+    }
+
+    /**
+     * Throw away the (failed) connection and everything created on it, and move on to the next broker URL.
+     * Everything is lazy-loaded again by the next operation.
+     */
+    protected void resetConnection() {
+
+        if (pooledConnection != null) {
+            // Make sure the pool closes it rather than handing it to someone else.
+            pooledConnection.markBroken();
+        }
+
+        releaseResources();
+
+        if (brokerUrls != null) {
+            brokerUrlIndex++;
+        }
+    }
+
+    /**
+     * Called on the provider's thread when the connection fails: closing the consumer makes a consume()
+     * blocked on it return, so it can reconnect.
+     */
+    private void closeBlockedConsumer() {
+
+        MessageConsumer blocked = blockedConsumer;
+
+        if (blocked != null) {
+            try {
+                blocked.close();
+            } catch (Exception e) {
+                // Ignore.
+            }
+        }
+    }
+
+    // End reconnect handling.
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Must finally call this to clean up resources.
+     * The underlying connection, session and producer are handed back to JmsConnectionPool rather than closed.
+     * The pool closes the connection once no other connector is using it, unless it's been given an idle timeout
+     * (see JmsConnectionPool.setIdleTimeoutMillis()) - then it's kept open, and keeps the JVM alive, until then.
+     * This method is idempotent.
+     */
+    public void close() {
+
+        long start = System.nanoTime();
+        boolean wasOpen = pooledConnection != null;
+
+        // Stop listeners first - this waits for in-flight handlers to finish.
+        for (JmsListenerContainer container : listeners) {
+            container.close();
+        }
+
+        listeners.clear();
+
+        if (!outageBuffer.isEmpty()) {
+            try {
+                prepareConnection();
+            } catch (Exception e) {
+                // Ignore - close() doesn't wait for the broker to come back.
+            }
+            outageBuffer.clear();
+        }
+
+        releaseResources();
+
+        if (wasOpen) {
+            metrics.recordLatency(JmsMetrics.CLOSE, metricsTag(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Quietly release the session, producer, consumers and connection. Listeners are left alone.
+     */
+    private void releaseResources() {
+
+        // Quietly try to close all the things.
+        // The producer belongs to the cached session, so it's left open for the next borrower.
+
+        // Let pending async sends finish before the session and connection go back to the pool.
+        if (asyncSender != null) {
+            asyncSender.close();
+        }
+
+        // Named and selector consumers share our session, so close them before it goes back to the pool.
+        for (MessageConsumer namedConsumer : namedConsumers.values()) {
+            closeQuietly(namedConsumer);
+        }
+
+        for (MessageConsumer selectorConsumer : selectorConsumers.values()) {
+            closeQuietly(selectorConsumer);
+        }
+
+        releaseSession(cachedSession, consumer);
+        releaseSession(batchSession, batchConsumer);
+
+        if (pooledConnection != null) {
+            // The connection is shared - give it back to the pool rather than closing it.
+            pooledConnection.removeFailureListener(wakeBlockedConsumer);
+            JmsConnectionPool.getInstance().release(pooledConnection);
+        }
+
+        // Let's reset everything in case the caller wants to try to reconnect if something fails.
+        // Nulling these out means we'll retry to lazy-load.
+
+        conFactory = null;
+        pooledConnection = null;
+        connection = null;
+        cachedSession = null;
+        session = null;
+        destination = null;
+        producer = null;
+        consumer = null;
+        batchSession = null;
+        batchConsumer = null;
+        asyncSender = null;
+        namedDestinations.clear();
+        namedConsumers.clear();
+        selectorConsumers.clear();
+    }
+
+    private static void closeQuietly(MessageConsumer toClose) {
+        try {
+            toClose.close();
+        } catch (Exception e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Quietly close the consumer, then give the session back to the connection's cache.
+     */
+    private void releaseSession(CachedSession cached, MessageConsumer sessionConsumer) {
+
+        boolean sessionReusable = true;
+
+        if (sessionConsumer != null) {
+            try {
+                sessionConsumer.close();
+            } catch (Exception e) {
+                // Don't hand a session with a half-closed consumer to someone else.
+                sessionReusable = false;
+            }
+        }
+
+        if (cached != null) {
+            if (sessionReusable) {
+                // The session is cached - give it back to the connection rather than closing it.
+                pooledConnection.releaseSession(cached);
+            } else {
+                cached.closeQuietly();
+            }
+        }
     }
 }
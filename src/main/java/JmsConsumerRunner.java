@@ -0,0 +1,193 @@
+import org.apache.log4j.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.MessageListener;
+import javax.naming.NamingException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives blocking consume() loops for many JmsConnectors, one thread per connector.
+ * On Java 21+ the loops run on virtual threads; on older JVMs it falls back to (daemon) platform threads.
+ *
+ * Virtual threads don't make idle queues free: ActiveMQ's receive() waits inside a synchronized block, which pins
+ * the virtual thread to its carrier thread for as long as it waits. The JDK only adds carriers up to
+ * jdk.virtualThreadScheduler.maxPoolSize (256 by default), so plan on at most a couple of hundred queues per
+ * runner. To serve more queues, use JmsConnector.listen() instead - listeners don't hold a thread while idle.
+ *
+ * Example usage:
+ *   runner.submit(new JmsConnector("tcp://localhost:61616", "users"), handler);
+ *   ...
+ *   runner.close(); // Stops the loops and closes the connectors.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsConsumerRunner {
+
+    private static final Logger LOG = Logger.getLogger(JmsConsumerRunner.class);
+
+    private final ThreadFactory threadFactory;
+    private final boolean virtualThreads;
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<JmsConnector> connectors = new ArrayList<>();
+
+    private volatile boolean running = true;
+    private volatile int pollTimeoutSecs = 1;
+
+    /**
+     * Use virtual threads if this JVM supports them.
+     */
+    public JmsConsumerRunner() {
+        this(true);
+    }
+
+    /**
+     * @param preferVirtualThreads false to always use platform threads
+     */
+    public JmsConsumerRunner(boolean preferVirtualThreads) {
+
+        ThreadFactory virtualFactory = preferVirtualThreads ? virtualThreadFactory() : null;
+
+        virtualThreads = virtualFactory != null;
+        threadFactory = virtualThreads ? virtualFactory : platformThreadFactory();
+    }
+
+    /**
+     * True if consume loops run on virtual threads.
+     */
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * How long each consume() call waits before checking whether the runner was closed. Defaults to 1 second,
+     * which is also roughly how long close() takes.
+     */
+    public JmsConsumerRunner setPollTimeoutSecs(int pollTimeoutSecs) {
+        if (pollTimeoutSecs < 1) {
+            throw new IllegalArgumentException("pollTimeoutSecs must be at least 1: " + pollTimeoutSecs);
+        }
+        this.pollTimeoutSecs = pollTimeoutSecs;
+        return this;
+    }
+
+    /**
+     * Start a loop that consumes from [connector] and hands each message to [handler].
+     * The runner takes ownership of the connector and closes it in close().
+     * Each message is acknowledged once the handler returns; if the handler throws, the failure is logged and
+     * the message is redelivered. If consuming fails (e.g. the broker went away), the failure is logged and
+     * the connector is closed so the next poll reconnects.
+     */
+    public synchronized void submit(final JmsConnector connector, final MessageListener handler) {
+
+        if (!running) {
+            throw new IllegalStateException("JmsConsumerRunner has been closed.");
+        }
+
+        Thread thread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                consumeLoop(connector, handler);
+            }
+        });
+
+        connectors.add(connector);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void consumeLoop(JmsConnector connector, MessageListener handler) {
+
+        while (running) {
+
+            try {
+
+                // Only acknowledged once the handler returns.
+                connector.consume(handler, pollTimeoutSecs);
+
+            } catch (RuntimeException e) {
+
+                // The handler failed - the message goes back to the broker for redelivery. The connection is fine.
+                LOG.error("Message handler failed, message will be redelivered", e);
+
+            } catch (JMSException | NamingException e) {
+
+                LOG.warn("Consuming failed, reconnecting in " + pollTimeoutSecs + " s", e);
+
+                // Reset the connector so the next poll lazy-loads a fresh connection.
+                connector.close();
+
+                try {
+                    Thread.sleep(pollTimeoutSecs * 1000L);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop all consume loops, wait for them to finish their current message, then close their connectors.
+     * This method is idempotent.
+     */
+    public synchronized void close() {
+
+        running = false;
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Only close connectors once nothing is using them anymore - JmsConnector isn't thread-safe.
+        for (JmsConnector connector : connectors) {
+            connector.close();
+        }
+
+        threads.clear();
+        connectors.clear();
+    }
+
+    /**
+     * Thread.ofVirtual().name("JmsConsumerRunner-", 0).factory(), looked up reflectively so this still
+     * compiles and runs on pre-21 JVMs. Returns null if virtual threads aren't available.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+
+        try {
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "JmsConsumerRunner-", 0L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+        } catch (Exception e) {
+            // Pre-Java 21.
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "JmsConsumerRunner-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,129 @@
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of JNDI lookups (connection factories and destinations), so a JNDI-configured
+ * JmsConnector starts up with a map lookup rather than a new InitialContext, which re-reads jndi.properties.
+ * Hits don't lock; misses are looked up one at a time through a single shared InitialContext, since contexts
+ * aren't thread-safe.
+ *
+ * Entries are kept forever by default. Set a TTL, or call invalidate(), to pick up JNDI changes.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsJndiCache {
+
+    private static final JmsJndiCache INSTANCE = new JmsJndiCache(null);
+
+    /**
+     * A looked-up object, and when it should be looked up again.
+     */
+    private static final class Entry {
+
+        final Object value;
+        final long expiresNanos;
+
+        Entry(Object value, long expiresNanos) {
+            this.value = value;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private final Hashtable<?, ?> environment;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile long ttlNanos;
+
+    // Guarded by this:
+    private Context context;
+
+    /**
+     * @param environment passed to the InitialContext, or null to use jndi.properties
+     */
+    JmsJndiCache(Hashtable<?, ?> environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * The cache shared by every JmsConnector in this process.
+     */
+    public static JmsJndiCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * How long lookups are cached for. Defaults to 0, meaning forever.
+     * Applies to lookups made after this call.
+     */
+    public JmsJndiCache setTtlMillis(long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis can't be negative: " + ttlMillis);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        return this;
+    }
+
+    /**
+     * The object bound to [name], from the cache if it's there and hasn't expired.
+     */
+    public Object lookup(String name) throws NamingException {
+
+        Entry entry = entries.get(name);
+
+        if (entry != null && !isExpired(entry)) {
+            return entry.value;
+        }
+
+        synchronized (this) {
+
+            // Someone else may have just looked it up.
+            entry = entries.get(name);
+
+            if (entry != null && !isExpired(entry)) {
+                return entry.value;
+            }
+
+            if (context == null) {
+                context = new InitialContext(environment);
+            }
+
+            long ttl = ttlNanos;
+            Object value = context.lookup(name);
+            entries.put(name, new Entry(value, ttl > 0 ? System.nanoTime() + ttl : 0));
+            return value;
+        }
+    }
+
+    private static boolean isExpired(Entry entry) {
+        return entry.expiresNanos != 0 && System.nanoTime() - entry.expiresNanos >= 0;
+    }
+
+    /**
+     * Forget the lookup for [name], so the next lookup goes to JNDI.
+     */
+    public void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * Forget every lookup, and close the shared context so jndi.properties is read again.
+     */
+    public synchronized void invalidateAll() {
+
+        entries.clear();
+
+        if (context != null) {
+            try {
+                context.close();
+            } catch (Exception e) {
+                // Ignore.
+            }
+            context = null;
+        }
+    }
+}
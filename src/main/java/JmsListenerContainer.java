@@ -0,0 +1,206 @@
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.Topic;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Push-based consumption: a MessageListener registered on [concurrency] sessions / consumers of one destination.
+ * JMS delivers to each session serially, so up to [concurrency] messages are handled in parallel -
+ * the handler must therefore be thread-safe.
+ * Created by JmsConnector.listen(), and stopped by close() on either this or the connector.
+ *
+ * The container borrows its own pooled connection. With a JmsReconnectPolicy, it rebuilds its sessions and
+ * consumers on a fresh connection when that one fails - retrying until it succeeds or is closed, since there's
+ * no caller to hand the failure to.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsListenerContainer {
+
+    private final String poolKey;
+    private final ConnectionFactory factory;
+    private final String clientId;
+    private final Destination destination;
+    private final String subscriptionName;
+    private final String selector;
+    private final MessageListener handler;
+    private final int concurrency;
+    private final JmsReconnectPolicy reconnectPolicy;
+    private final ExceptionListener failureListener = e -> onConnectionFailure();
+
+    // Guarded by this:
+    private PooledConnection pooledConnection;
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<MessageConsumer> consumers = new ArrayList<>();
+    private boolean reconnecting;
+    private boolean closed;
+
+    /**
+     * @param clientId the connection's client ID, or null for none
+     * @param subscriptionName the durable subscription to listen on, or null for a regular consumer.
+     *                         [destination] must then be a Topic.
+     * @param selector only listen for messages matching this JMS message selector, or null for all messages.
+     *                 Must be null with a durable subscription.
+     * @param reconnectPolicy null to stop listening when the connection fails
+     */
+    JmsListenerContainer(String poolKey, ConnectionFactory factory, String clientId, Destination destination,
+        String subscriptionName, String selector, MessageListener handler, int concurrency,
+        JmsReconnectPolicy reconnectPolicy) throws JMSException {
+
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+        }
+
+        if (subscriptionName != null && concurrency > 1) {
+            throw new IllegalArgumentException("A durable subscription can only have one consumer: " + concurrency);
+        }
+
+        this.poolKey = poolKey;
+        this.factory = factory;
+        this.clientId = clientId;
+        this.destination = destination;
+        this.subscriptionName = subscriptionName;
+        this.selector = selector;
+        this.handler = handler;
+        this.concurrency = concurrency;
+        this.reconnectPolicy = reconnectPolicy;
+
+        synchronized (this) {
+            start();
+        }
+    }
+
+    /**
+     * Borrow a connection and register the listener on [concurrency] sessions. Cleans up after itself on failure.
+     */
+    private void start() throws JMSException {
+
+        try {
+
+            pooledConnection = JmsConnectionPool.getInstance().borrow(poolKey, factory, clientId);
+
+            for (int i = 0; i < concurrency; i++) {
+
+                // Dedicated sessions - a session with a listener shouldn't be shared or cached.
+                // AUTO_ACKNOWLEDGE acks after the handler returns; if it throws, the message is redelivered.
+                Session session = pooledConnection.getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+                sessions.add(session);
+
+                MessageConsumer consumer = subscriptionName == null
+                    ? session.createConsumer(destination, selector)
+                    : session.createDurableSubscriber((Topic) destination, subscriptionName);
+                consumers.add(consumer);
+                consumer.setMessageListener(handler);
+            }
+
+            if (reconnectPolicy != null) {
+                pooledConnection.addFailureListener(failureListener);
+            }
+
+        } catch (JMSException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Quietly close the consumers and sessions, and hand the connection back to the pool.
+     */
+    private void stop() {
+
+        // Closing a consumer waits for its in-progress onMessage() to return.
+        for (MessageConsumer consumer : consumers) {
+            try {
+                consumer.close();
+            } catch (Exception e) {
+                // Ignore.
+            }
+        }
+
+        for (Session session : sessions) {
+            try {
+                session.close();
+            } catch (Exception e) {
+                // Ignore.
+            }
+        }
+
+        consumers.clear();
+        sessions.clear();
+
+        if (pooledConnection != null) {
+            pooledConnection.removeFailureListener(failureListener);
+            JmsConnectionPool.getInstance().release(pooledConnection);
+            pooledConnection = null;
+        }
+    }
+
+    /**
+     * Called on the provider's thread when our connection dies. Reconnecting blocks, so it happens elsewhere.
+     */
+    private synchronized void onConnectionFailure() {
+
+        if (closed || reconnecting) {
+            return;
+        }
+
+        reconnecting = true;
+
+        Thread thread = new Thread(this::reconnect, "JmsListenerContainer-reconnect");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void reconnect() {
+
+        synchronized (this) {
+            stop();
+        }
+
+        for (int attempt = 0; ; attempt++) {
+
+            try {
+                Thread.sleep(reconnectPolicy.delayMillis(attempt));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (this) {
+
+                if (closed) {
+                    return;
+                }
+
+                try {
+                    start();
+                    reconnecting = false;
+                    return;
+                } catch (JMSException e) {
+                    // Broker's still down - back off and try again.
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of sessions delivering messages in parallel. 0 while reconnecting.
+     */
+    public synchronized int getConcurrency() {
+        return consumers.size();
+    }
+
+    /**
+     * Stop listening. Blocks until handlers already running have finished, so nothing is cut off mid-message.
+     * This method is idempotent.
+     */
+    public synchronized void close() {
+        closed = true;
+        stop();
+    }
+}
@@ -0,0 +1,319 @@
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable, provider-independent map message body. Unlike a provider MapMessage, it isn't tied to a session,
+ * so it can be built on any thread and shared freely. It's copied into a MapMessage only once, at send time.
+ * Example usage: JmsMapMessage.builder().addString("name", "luke").addInt("age", 29).build();
+ *
+ * Entries are kept in parallel arrays, with primitives stored unboxed as long bits, so building a big map
+ * doesn't allocate a wrapper object per field. Like a map, adding a key again replaces its value in place.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public final class JmsMapMessage {
+
+    // Entry types:
+    private static final byte STRING = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte BYTES = 5;
+    private static final byte SHORT = 6;
+    private static final byte FLOAT = 7;
+    private static final byte CHAR = 8;
+    private static final byte BYTE = 9;
+    private static final byte OBJECT = 10;
+
+    private final int size;
+    private final String[] keys;
+    private final byte[] types;
+
+    // Primitive values, as long bits:
+    private final long[] primitives;
+
+    // Strings, byte arrays and other objects (null for primitive entries):
+    private final Object[] objects;
+
+    private JmsMapMessage(Builder builder) {
+        this.size = builder.size;
+        this.keys = builder.keys;
+        this.types = builder.types;
+        this.primitives = builder.primitives;
+        this.objects = builder.objects;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Number of distinct keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The entries, boxed, in the order their keys were first added.
+     * Builds a new map on each call - meant for inspection, not the send path.
+     */
+    public Map<String, Object> getEntries() {
+
+        Map<String, Object> entries = new LinkedHashMap<>();
+
+        for (int i = 0; i < size; i++) {
+            entries.put(keys[i], valueAt(i));
+        }
+
+        return Collections.unmodifiableMap(entries);
+    }
+
+    private Object valueAt(int i) {
+
+        long bits = primitives[i];
+
+        switch (types[i]) {
+            case INT:
+                return (int) bits;
+            case LONG:
+                return bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            case BOOLEAN:
+                return bits != 0;
+            case SHORT:
+                return (short) bits;
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case CHAR:
+                return (char) bits;
+            case BYTE:
+                return (byte) bits;
+            case BYTES:
+                // Don't hand out our own copy.
+                return ((byte[]) objects[i]).clone();
+            default:
+                return objects[i];
+        }
+    }
+
+    /**
+     * Copy the entries into a provider MapMessage, in the order their keys were first added.
+     */
+    public void writeTo(MapMessage msg) throws JMSException {
+
+        for (int i = 0; i < size; i++) {
+
+            String key = keys[i];
+            long bits = primitives[i];
+
+            switch (types[i]) {
+                case STRING:
+                    msg.setString(key, (String) objects[i]);
+                    break;
+                case INT:
+                    msg.setInt(key, (int) bits);
+                    break;
+                case LONG:
+                    msg.setLong(key, bits);
+                    break;
+                case DOUBLE:
+                    msg.setDouble(key, Double.longBitsToDouble(bits));
+                    break;
+                case BOOLEAN:
+                    msg.setBoolean(key, bits != 0);
+                    break;
+                case BYTES:
+                    msg.setBytes(key, (byte[]) objects[i]);
+                    break;
+                case SHORT:
+                    msg.setShort(key, (short) bits);
+                    break;
+                case FLOAT:
+                    msg.setFloat(key, Float.intBitsToFloat((int) bits));
+                    break;
+                case CHAR:
+                    msg.setChar(key, (char) bits);
+                    break;
+                case BYTE:
+                    msg.setByte(key, (byte) bits);
+                    break;
+                default:
+                    msg.setObject(key, objects[i]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Collects entries for a JmsMapMessage. Builders aren't thread-safe, but what they build is.
+     */
+    public static final class Builder {
+
+        private static final int INDEX_THRESHOLD = 16;
+
+        private int size;
+        private String[] keys = new String[8];
+        private byte[] types = new byte[8];
+        private long[] primitives = new long[8];
+        private Object[] objects = new Object[8];
+        private boolean built;
+
+        // Key -> position, only built once there are enough entries that scanning the keys gets slow:
+        private Map<String, Integer> index;
+
+        private Builder() {
+        }
+
+        private Builder add(String key, byte type, long bits, Object object) {
+
+            if (built) {
+                throw new IllegalStateException("build() has already been called.");
+            }
+
+            int i = indexOf(key);
+
+            if (i >= 0) {
+                // Replace the value, keeping the key's position.
+                types[i] = type;
+                primitives[i] = bits;
+                objects[i] = object;
+                return this;
+            }
+
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                types = Arrays.copyOf(types, capacity);
+                primitives = Arrays.copyOf(primitives, capacity);
+                objects = Arrays.copyOf(objects, capacity);
+            }
+
+            keys[size] = key;
+            types[size] = type;
+            primitives[size] = bits;
+            objects[size] = object;
+
+            if (index != null) {
+                index.put(key, size);
+            }
+
+            size++;
+            return this;
+        }
+
+        private int indexOf(String key) {
+
+            if (index == null && size >= INDEX_THRESHOLD) {
+                index = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    index.put(keys[i], i);
+                }
+            }
+
+            if (index != null) {
+                Integer i = index.get(key);
+                return i == null ? -1 : i;
+            }
+
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Add an entire map of strings.
+         */
+        public Builder addStringMap(Map<String, String> strMap) {
+
+            for (Map.Entry<String, String> entry : strMap.entrySet()) {
+                addString(entry.getKey(), entry.getValue());
+            }
+
+            return this;
+        }
+
+        public Builder addString(String key, String val) {
+            return add(key, STRING, 0, val);
+        }
+
+        public Builder addInt(String key, int val) {
+            return add(key, INT, val, null);
+        }
+
+        public Builder addLong(String key, long val) {
+            return add(key, LONG, val, null);
+        }
+
+        public Builder addDouble(String key, double val) {
+            return add(key, DOUBLE, Double.doubleToRawLongBits(val), null);
+        }
+
+        public Builder addBoolean(String key, boolean val) {
+            return add(key, BOOLEAN, val ? 1 : 0, null);
+        }
+
+        public Builder addShort(String key, short val) {
+            return add(key, SHORT, val, null);
+        }
+
+        public Builder addFloat(String key, float val) {
+            return add(key, FLOAT, Float.floatToRawIntBits(val), null);
+        }
+
+        public Builder addChar(String key, char val) {
+            return add(key, CHAR, val, null);
+        }
+
+        public Builder addByte(String key, byte val) {
+            return add(key, BYTE, val, null);
+        }
+
+        /**
+         * Add a byte array. It's copied, so the caller may reuse [val].
+         */
+        public Builder addBytes(String key, byte[] val) {
+            return addBytes(key, val, 0, val.length);
+        }
+
+        /**
+         * Add [length] bytes of [val], starting at [offset].
+         */
+        public Builder addBytes(String key, byte[] val, int offset, int length) {
+            return add(key, BYTES, 0, Arrays.copyOfRange(val, offset, offset + length));
+        }
+
+        /**
+         * Add any value MapMessage.setObject() accepts: the primitive wrappers, String and byte[].
+         * ActiveMQ also accepts nested Maps and Lists of those. Nested values aren't copied, so don't change them
+         * afterwards.
+         */
+        public Builder addObject(String key, Object val) {
+            return add(key, OBJECT, 0, val instanceof byte[] ? ((byte[]) val).clone() : val);
+        }
+
+        /**
+         * The builder can't be used anymore after this.
+         */
+        public JmsMapMessage build() {
+
+            if (built) {
+                throw new IllegalStateException("build() has already been called.");
+            }
+
+            built = true;
+            return new JmsMapMessage(this);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Pluggable instrumentation for JmsConnector. Every measurement is tagged with the metric name (one of the
+ * constants below) and the destination, so slow queues can be told apart.
+ * Implementations must be thread-safe. See JmxJmsMetrics for one that publishes to JMX.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public interface JmsMetrics {
+
+    // Metric names:
+    String SEND = "send";
+    String RECEIVE = "receive";
+    String CONNECTION_SETUP = "connectionSetup";
+    String SESSION_CREATE = "sessionCreate";
+    String CLOSE = "close";
+
+    // Time from the producer's send until the message was handed to the consumer (queue residence time):
+    String END_TO_END = "endToEnd";
+
+    /**
+     * Doesn't record anything. The default.
+     */
+    JmsMetrics NOOP = new JmsMetrics() {
+
+        @Override
+        public void recordLatency(String metric, String destination, long nanos) {
+        }
+
+        @Override
+        public void recordError(String metric, String destination) {
+        }
+
+        @Override
+        public void adjustInFlight(String metric, String destination, int delta) {
+        }
+    };
+
+    /**
+     * An operation completed successfully in [nanos] nanoseconds.
+     */
+    void recordLatency(String metric, String destination, long nanos);
+
+    /**
+     * An operation failed.
+     */
+    void recordError(String metric, String destination);
+
+    /**
+     * An operation started (+1) or finished (-1).
+     */
+    void adjustInFlight(String metric, String destination, int delta);
+}
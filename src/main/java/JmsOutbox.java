@@ -0,0 +1,640 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Store-and-forward for sends the broker can't take right now: an append-only log of memory-mapped segment files
+ * in a local directory, drained by a background thread through its own JmsConnector once the broker is back.
+ * Example usage: jmsConn.setOutbox(new JmsOutbox(new File("/var/spool/myapp/users"), new JmsConnector(url, "users")));
+ *
+ * Appends are written straight into the mapping, so they survive the process dying (but not the OS, unless
+ * setSyncOnAppend() is on). Records left over from a previous run are forwarded when the outbox is reopened.
+ * A record is only marked forwarded after its batch is committed, so a crash in between means it's sent twice.
+ * Records whose time-to-live ran out while they were waiting are dropped.
+ *
+ * A record keeps the text, delivery options and message properties of the original send, and when it was
+ * stored - forwarded messages carry that as their send stamp, so latency metrics include the time spent here.
+ * Everything else (compression, metrics tags) is up to the forwarder.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsOutbox {
+
+    // Record types:
+    static final byte TEXT = 1;
+    static final byte NULL_TEXT = 2;
+
+    // Set on the type when the payload starts with the message properties: [int length][int count], then
+    // per property [UTF name][byte kind][value], with the text after them.
+    private static final byte PROPERTIES = 0x10;
+
+    // Record states:
+    private static final byte PENDING = 0;
+    private static final byte FORWARDED = 1;
+
+    // Record layout: [int recordSize][byte state][byte type][int deliveryMode][int priority][long timeToLive]
+    // [long appendedMillis][payload]. The size is written last, so a half-written record is never seen.
+    // A size of 0 marks the end of the segment - new segment files are all zeros.
+    private static final int STATE_OFFSET = 4;
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 4 + 4 + 8 + 8;
+
+    private static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * A message waiting to be forwarded, with the time-to-live it has left.
+     */
+    static final class Record {
+
+        final String text;
+        final int deliveryMode;
+        final int priority;
+        final long timeToLive;
+        final Map<String, Object> properties;
+        final long appendedMillis;
+
+        private final Segment segment;
+        private final int position;
+
+        Record(String text, int deliveryMode, int priority, long timeToLive, Map<String, Object> properties,
+            long appendedMillis, Segment segment, int position) {
+
+            this.text = text;
+            this.deliveryMode = deliveryMode;
+            this.priority = priority;
+            this.timeToLive = timeToLive;
+            this.properties = properties;
+            this.appendedMillis = appendedMillis;
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    /**
+     * One mapped segment file. [readPosition] is the first record that may still be pending,
+     * [writePosition] where the next record goes.
+     */
+    private static final class Segment {
+
+        final File file;
+        final MappedByteBuffer buffer;
+        int readPosition;
+        int writePosition;
+
+        Segment(File file, long size) throws IOException {
+
+            this.file = file;
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // The mapping stays valid after the channel is closed.
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /**
+         * Size of the record at [position], or 0 if there isn't one.
+         */
+        int recordSizeAt(int position) {
+            return position + 4 > buffer.capacity() ? 0 : buffer.getInt(position);
+        }
+
+        /**
+         * Release the mapping now, rather than whenever the buffer happens to be garbage collected - until then
+         * the file's disk space isn't freed (and on Windows it can't be deleted). The buffer can't be touched
+         * afterwards, so only call this once the segment is out of [segments].
+         */
+        void unmap() {
+            try {
+                try {
+                    // Java 9+:
+                    Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                    Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                    Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                    theUnsafe.setAccessible(true);
+                    invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                } catch (NoSuchMethodException e) {
+                    // Java 8:
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                // Ignore - it's unmapped when it's garbage collected instead.
+            }
+        }
+    }
+
+    private final File dir;
+    private final JmsConnector forwarder;
+    private final Thread forwarderThread;
+    private final JmsReconnectPolicy retryPolicy = new JmsReconnectPolicy();
+
+    // Guarded by this:
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private boolean syncOnAppend;
+    private long nextSegmentNumber;
+    private int pendingCount;
+    private boolean closed;
+
+    /**
+     * Open (or create) the outbox in [dir], and start forwarding through [forwarder], which the outbox owns
+     * and closes. Give the forwarder the same destination as the connectors using this outbox.
+     */
+    public JmsOutbox(File dir, JmsConnector forwarder) throws IOException {
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create outbox directory: " + dir);
+        }
+
+        this.dir = dir;
+        this.forwarder = forwarder;
+
+        recover();
+
+        forwarderThread = new Thread(this::forwardLoop, "JmsOutbox-" + dir.getName());
+        forwarderThread.setDaemon(true);
+        forwarderThread.start();
+    }
+
+    /**
+     * Reopen segments left over from a previous run, and find where forwarding left off.
+     */
+    private void recover() throws IOException {
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith("outbox-") && name.endsWith(".log"));
+
+        if (files == null) {
+            throw new IOException("Couldn't list outbox directory: " + dir);
+        }
+
+        // Segment numbers are zero-padded, so name order is append order.
+        Arrays.sort(files);
+
+        for (File file : files) {
+
+            Segment segment = new Segment(file, file.length());
+            int position = 0;
+            int size;
+
+            segment.readPosition = -1;
+
+            while ((size = segment.recordSizeAt(position)) > 0) {
+
+                if (segment.buffer.get(position + STATE_OFFSET) == PENDING) {
+                    pendingCount++;
+                    if (segment.readPosition < 0) {
+                        segment.readPosition = position;
+                    }
+                }
+
+                position += size;
+            }
+
+            segment.writePosition = position;
+
+            if (segment.readPosition < 0) {
+                segment.readPosition = position;
+            }
+
+            segments.add(segment);
+
+            String name = file.getName();
+            nextSegmentNumber = Long.parseLong(name.substring("outbox-".length(), name.length() - ".log".length())) + 1;
+        }
+
+        deleteForwardedSegments();
+    }
+
+    /**
+     * Size of new segment files. Defaults to 16 MB. A message bigger than this gets a segment of its own.
+     */
+    public synchronized JmsOutbox setSegmentSize(long segmentSize) {
+        if (segmentSize < HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentSize must be between " + HEADER_SIZE + " and 2 GB: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Flush every append to disk before returning, so messages survive a power cut too. Much slower.
+     */
+    public synchronized JmsOutbox setSyncOnAppend(boolean syncOnAppend) {
+        this.syncOnAppend = syncOnAppend;
+        return this;
+    }
+
+    /**
+     * Number of messages waiting to be forwarded.
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Store a text message for forwarding.
+     */
+    public void append(String text, int deliveryMode, int priority, long timeToLive) throws IOException {
+        append(text, deliveryMode, priority, timeToLive, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * Store a text message for forwarding, with message [properties] (Strings, Booleans and primitive wrappers)
+     * to send it with.
+     */
+    public synchronized void append(String text, int deliveryMode, int priority, long timeToLive,
+        Map<String, Object> properties) throws IOException {
+
+        if (closed) {
+            throw new IOException("Outbox is closed: " + dir);
+        }
+
+        byte[] textBytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = properties.isEmpty() ? textBytes : withProperties(properties, textBytes);
+        int size = HEADER_SIZE + payload.length;
+        byte type = text == null ? NULL_TEXT : TEXT;
+
+        Segment tail = segments.peekLast();
+
+        if (tail == null || tail.writePosition + size > tail.buffer.capacity()) {
+            tail = newSegment(Math.max(segmentSize, size));
+        }
+
+        MappedByteBuffer buffer = tail.buffer;
+        int position = tail.writePosition;
+
+        buffer.put(position + STATE_OFFSET, PENDING);
+        buffer.put(position + 5, properties.isEmpty() ? type : (byte) (type | PROPERTIES));
+        buffer.putInt(position + 6, deliveryMode);
+        buffer.putInt(position + 10, priority);
+        buffer.putLong(position + 14, timeToLive);
+        buffer.putLong(position + 22, System.currentTimeMillis());
+
+        ByteBuffer payloadBuffer = buffer.duplicate();
+        payloadBuffer.position(position + HEADER_SIZE);
+        payloadBuffer.put(payload);
+
+        buffer.putInt(position, size);
+
+        if (syncOnAppend) {
+            buffer.force();
+        }
+
+        tail.writePosition += size;
+        pendingCount++;
+
+        // Wake up the forwarder.
+        notifyAll();
+    }
+
+    private Segment newSegment(long size) throws IOException {
+        File file = new File(dir, String.format("outbox-%020d.log", nextSegmentNumber++));
+        Segment segment = new Segment(file, size);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Wait for pending records, then read up to the forwarder's batch limits. Expired records are dropped here.
+     * Nothing is marked forwarded yet. Returns null once the outbox is closed.
+     */
+    private synchronized List<Record> nextBatch() throws InterruptedException {
+
+        while (!closed && pendingCount == 0) {
+            wait();
+        }
+
+        if (closed) {
+            return null;
+        }
+
+        List<Record> batch = new ArrayList<>();
+        long batchBytes = 0;
+        long now = System.currentTimeMillis();
+        int maxBatchSize = forwarder.getMaxBatchSize();
+        long maxBatchBytes = forwarder.getMaxBatchBytes();
+
+        for (Segment segment : segments) {
+
+            int position = segment.readPosition;
+            int size;
+
+            while ((size = segment.recordSizeAt(position)) > 0) {
+
+                if (batch.size() >= maxBatchSize || (!batch.isEmpty() && batchBytes >= maxBatchBytes)) {
+                    return batch;
+                }
+
+                MappedByteBuffer buffer = segment.buffer;
+
+                if (buffer.get(position + STATE_OFFSET) == PENDING) {
+
+                    long timeToLive = buffer.getLong(position + 14);
+                    boolean expires = timeToLive > 0;
+
+                    if (expires) {
+                        timeToLive -= now - buffer.getLong(position + 22);
+                    }
+
+                    // A time-to-live of 0 means "never expires", so one that has just run out must not be sent as 0.
+                    if (expires && timeToLive <= 0) {
+                        // Expired while waiting - the broker would just throw it away.
+                        buffer.put(position + STATE_OFFSET, FORWARDED);
+                        pendingCount--;
+                    } else {
+                        batch.add(readRecord(buffer, position, size, timeToLive, segment));
+                        batchBytes += size - HEADER_SIZE;
+                    }
+                }
+
+                position += size;
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * [properties], then [text], as a record payload.
+     */
+    private static byte[] withProperties(Map<String, Object> properties, byte[] text) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + text.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        // Length placeholder, filled in below.
+        out.writeInt(0);
+        out.writeInt(properties.size());
+
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+
+            Object value = property.getValue();
+            out.writeUTF(property.getKey());
+
+            if (value instanceof String) {
+                out.writeByte('S');
+                out.writeUTF((String) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte('Z');
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Byte) {
+                out.writeByte('B');
+                out.writeByte((Byte) value);
+            } else if (value instanceof Short) {
+                out.writeByte('H');
+                out.writeShort((Short) value);
+            } else if (value instanceof Integer) {
+                out.writeByte('I');
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte('J');
+                out.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                out.writeByte('F');
+                out.writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                out.writeByte('D');
+                out.writeDouble((Double) value);
+            } else {
+                throw new IOException("Not a valid JMS property value: " + property.getKey() + "=" + value);
+            }
+        }
+
+        out.write(text);
+        out.flush();
+
+        byte[] payload = bytes.toByteArray();
+        ByteBuffer.wrap(payload).putInt(0, payload.length - text.length);
+        return payload;
+    }
+
+    /**
+     * Decode the record straight out of the mapping.
+     */
+    private static Record readRecord(MappedByteBuffer buffer, int position, int size, long timeToLive,
+        Segment segment) {
+
+        byte type = buffer.get(position + 5);
+        int textStart = position + HEADER_SIZE;
+        Map<String, Object> properties = Collections.emptyMap();
+
+        if ((type & PROPERTIES) != 0) {
+            int length = buffer.getInt(textStart);
+            properties = readProperties(buffer, textStart, length);
+            textStart += length;
+        }
+
+        String text = null;
+
+        if ((type & ~PROPERTIES) != NULL_TEXT) {
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(position + size);
+            payload.position(textStart);
+            text = StandardCharsets.UTF_8.decode(payload).toString();
+        }
+
+        return new Record(text, buffer.getInt(position + 6), buffer.getInt(position + 10), timeToLive, properties,
+            buffer.getLong(position + 22), segment, position);
+    }
+
+    private static Map<String, Object> readProperties(MappedByteBuffer buffer, int start, int length) {
+
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(start);
+        source.get(bytes);
+
+        try {
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.readInt();
+
+            int count = in.readInt();
+            Map<String, Object> properties = new LinkedHashMap<>();
+
+            for (int i = 0; i < count; i++) {
+
+                String name = in.readUTF();
+                byte kind = in.readByte();
+
+                switch (kind) {
+                    case 'S':
+                        properties.put(name, in.readUTF());
+                        break;
+                    case 'Z':
+                        properties.put(name, in.readBoolean());
+                        break;
+                    case 'B':
+                        properties.put(name, in.readByte());
+                        break;
+                    case 'H':
+                        properties.put(name, in.readShort());
+                        break;
+                    case 'I':
+                        properties.put(name, in.readInt());
+                        break;
+                    case 'J':
+                        properties.put(name, in.readLong());
+                        break;
+                    case 'F':
+                        properties.put(name, in.readFloat());
+                        break;
+                    default:
+                        properties.put(name, in.readDouble());
+                        break;
+                }
+            }
+
+            return properties;
+
+        } catch (IOException e) {
+            // Can't happen - we wrote these bytes ourselves, and reading from memory doesn't fail.
+            throw new IllegalStateException("Corrupt outbox record properties.", e);
+        }
+    }
+
+    /**
+     * Called once [batch] is committed to the broker.
+     */
+    private synchronized void markForwarded(List<Record> batch) {
+
+        for (Record record : batch) {
+            record.segment.buffer.put(record.position + STATE_OFFSET, FORWARDED);
+            pendingCount--;
+        }
+
+        // Move each segment's read position past what's been forwarded.
+        for (Segment segment : segments) {
+
+            int size;
+
+            while ((size = segment.recordSizeAt(segment.readPosition)) > 0
+                && segment.buffer.get(segment.readPosition + STATE_OFFSET) == FORWARDED) {
+
+                segment.readPosition += size;
+            }
+        }
+
+        deleteForwardedSegments();
+    }
+
+    /**
+     * Delete fully forwarded segments from the front. The last one is kept, since it's still being appended to.
+     */
+    private void deleteForwardedSegments() {
+
+        while (segments.size() > 1) {
+
+            Segment head = segments.peekFirst();
+
+            if (head.readPosition < head.writePosition) {
+                return;
+            }
+
+            segments.pollFirst();
+            head.unmap();
+
+            if (!head.file.delete()) {
+                // Every record in it is marked forwarded, so it's skipped if it's still there next time.
+                head.file.deleteOnExit();
+            }
+        }
+    }
+
+    private void forwardLoop() {
+
+        int failures = 0;
+
+        while (true) {
+
+            List<Record> batch;
+
+            try {
+                batch = nextBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (batch == null) {
+                return;
+            }
+
+            if (batch.isEmpty()) {
+                // Only expired records this time - just move past them.
+                markForwarded(batch);
+                continue;
+            }
+
+            try {
+                forwarder.forward(batch);
+                markForwarded(batch);
+                failures = 0;
+            } catch (Exception e) {
+                // Broker's still down - back off, but wake up right away if we're closed.
+                synchronized (this) {
+                    try {
+                        if (!closed) {
+                            wait(Math.max(1, retryPolicy.delayMillis(failures++)));
+                        }
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop forwarding and close the forwarder. Waits for a batch already being sent. Records not yet forwarded
+     * stay on disk for the next JmsOutbox opened on this directory.
+     * This method is idempotent.
+     */
+    public void close() {
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            forwarderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        forwarder.close();
+
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+
+            // Unmapping while the forwarder is still reading would crash the JVM.
+            if (!forwarderThread.isAlive()) {
+                for (Segment segment : segments) {
+                    segment.unmap();
+                }
+                segments.clear();
+            }
+        }
+    }
+}
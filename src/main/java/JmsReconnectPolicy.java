@@ -0,0 +1,88 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How JmsConnector retries after losing its broker connection: exponential backoff with jitter, so that many
+ * clients losing the same broker don't all reconnect in lockstep the moment it comes back.
+ * Example usage: jmsConn.setReconnectPolicy(new JmsReconnectPolicy().setMaxAttempts(20));
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsReconnectPolicy {
+
+    private long initialDelayMillis = 100;
+    private long maxDelayMillis = 30000;
+    private double multiplier = 2;
+    private double jitter = 0.5;
+    private int maxAttempts = 10;
+
+    /**
+     * Delay before the first reconnect attempt. Defaults to 100 ms.
+     */
+    public JmsReconnectPolicy setInitialDelayMillis(long initialDelayMillis) {
+        if (initialDelayMillis < 0) {
+            throw new IllegalArgumentException("initialDelayMillis can't be negative: " + initialDelayMillis);
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        return this;
+    }
+
+    /**
+     * Upper bound for the delay between attempts. Defaults to 30 seconds.
+     */
+    public JmsReconnectPolicy setMaxDelayMillis(long maxDelayMillis) {
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxDelayMillis can't be negative: " + maxDelayMillis);
+        }
+        this.maxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    /**
+     * How much the delay grows after each failed attempt. Defaults to 2.
+     */
+    public JmsReconnectPolicy setMultiplier(double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1: " + multiplier);
+        }
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Fraction of each delay that's randomized: 0 for none, 1 for anywhere between 0 and the full delay.
+     * Defaults to 0.5.
+     */
+    public JmsReconnectPolicy setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * How many times an operation is retried before its exception is passed on to the caller. Defaults to 10.
+     */
+    public JmsReconnectPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts can't be negative: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * How long to wait before reconnect attempt number [attempt] (starting from 0).
+     */
+    public long delayMillis(int attempt) {
+
+        double delay = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, attempt));
+
+        // Take a random chunk off, so clients that failed at the same time spread out.
+        return (long) (delay * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+}
@@ -0,0 +1,178 @@
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The temporary queue replies to JmsConnector.request() come back on. There's one per PooledConnection,
+ * shared by every request made over it: a single consumer, plus a map of the futures still waiting,
+ * by correlation ID. Created lazily by PooledConnection.getReplyQueue(), and gone with the connection.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsReplyQueue implements MessageListener {
+
+    // Times out requests for every reply queue in the process. Cancelled timeouts are removed right away,
+    // since most requests are answered long before they'd time out.
+    private static final ScheduledExecutorService TIMEOUTS = createTimeoutExecutor();
+
+    private final Session session;
+    private final TemporaryQueue queue;
+    private final MessageConsumer consumer;
+
+    // Correlation IDs only need to be unique per queue, and the queue dies with the connection.
+    private final AtomicLong lastCorrelationId = new AtomicLong();
+    private final Map<String, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+
+    JmsReplyQueue(Connection connection) throws JMSException {
+
+        // A dedicated session - a session with a listener shouldn't be shared or cached.
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+        try {
+            queue = session.createTemporaryQueue();
+            consumer = session.createConsumer(queue);
+            consumer.setMessageListener(this);
+        } catch (JMSException e) {
+            closeSession();
+            throw e;
+        }
+    }
+
+    private static ScheduledExecutorService createTimeoutExecutor() {
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "JmsReplyQueue-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.setRemoveOnCancelPolicy(true);
+        return Executors.unconfigurableScheduledExecutorService(executor);
+    }
+
+    /**
+     * Where the replier should send the reply: the request's JMSReplyTo.
+     */
+    public TemporaryQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * A correlation ID no other request on this queue has used.
+     */
+    public String nextCorrelationId() {
+        return Long.toString(lastCorrelationId.incrementAndGet());
+    }
+
+    /**
+     * Number of requests still waiting for a reply.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Start waiting for the reply to [correlationId] - call this before sending the request, so a fast
+     * reply isn't missed. The future fails with a TimeoutException after [timeoutMillis].
+     * Cancelling it stops the wait; a reply that turns up afterwards is dropped.
+     */
+    public CompletableFuture<Message> expect(final String correlationId, long timeoutMillis) {
+
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        pending.put(correlationId, future);
+
+        final ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> {
+            future.completeExceptionally(new TimeoutException(
+                "No reply to request " + correlationId + " within " + timeoutMillis + " ms."));
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        // However it ends (reply, timeout, cancel, failure), stop tracking it.
+        future.whenComplete((reply, e) -> {
+            pending.remove(correlationId, future);
+            timeout.cancel(false);
+        });
+
+        return future;
+    }
+
+    /**
+     * Called on the session's thread with each reply. Replies nobody is waiting for anymore are dropped.
+     * Futures are completed on this thread, so use the *Async() variants for slow follow-up work.
+     */
+    @Override
+    public void onMessage(Message reply) {
+
+        CompletableFuture<Message> future;
+
+        try {
+            String correlationId = reply.getJMSCorrelationID();
+            future = correlationId == null ? null : pending.get(correlationId);
+        } catch (JMSException e) {
+            return;
+        }
+
+        if (future == null) {
+            return;
+        }
+
+        try {
+            future.complete(JmsConnector.decompress(reply));
+        } catch (JMSException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Fail every waiting request, e.g. because the connection died and took the queue with it.
+     */
+    void failAll(Exception cause) {
+
+        for (CompletableFuture<Message> future : pending.values()) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Quietly close the consumer and session, failing any requests still waiting.
+     */
+    void closeQuietly() {
+
+        failAll(new JMSException("Reply queue closed before the reply arrived."));
+
+        try {
+            consumer.close();
+        } catch (Exception e) {
+            // Ignore.
+        }
+
+        try {
+            queue.delete();
+        } catch (Exception e) {
+            // Ignore - it goes away with the connection anyway.
+        }
+
+        closeSession();
+    }
+
+    private void closeSession() {
+        try {
+            session.close();
+        } catch (Exception e) {
+            // Ignore.
+        }
+    }
+}
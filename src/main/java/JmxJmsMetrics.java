@@ -0,0 +1,95 @@
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * JmsMetrics that keeps a LatencyHistogram per metric and destination, and publishes each one to the platform
+ * MBean server as "JmsConnector:type=Metrics,metric=send,destination=users" (visible in jconsole / VisualVM).
+ * Example usage: JmsConnector.setDefaultMetrics(new JmxJmsMetrics());
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmxJmsMetrics implements JmsMetrics {
+
+    private static final String DOMAIN = "JmsConnector";
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final MBeanServer mbeanServer;
+
+    public JmxJmsMetrics() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxJmsMetrics(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    @Override
+    public void recordLatency(String metric, String destination, long nanos) {
+        getHistogram(metric, destination).record(nanos);
+    }
+
+    @Override
+    public void recordError(String metric, String destination) {
+        getHistogram(metric, destination).recordError();
+    }
+
+    @Override
+    public void adjustInFlight(String metric, String destination, int delta) {
+        getHistogram(metric, destination).adjustInFlight(delta);
+    }
+
+    /**
+     * The histogram for this metric and destination, created (and registered with JMX) on first use.
+     */
+    public LatencyHistogram getHistogram(String metric, String destination) {
+
+        String key = metric + '|' + destination;
+        LatencyHistogram histogram = histograms.get(key);
+
+        if (histogram != null) {
+            return histogram;
+        }
+
+        LatencyHistogram newHistogram = new LatencyHistogram();
+        histogram = histograms.putIfAbsent(key, newHistogram);
+
+        if (histogram != null) {
+            return histogram;
+        }
+
+        try {
+            mbeanServer.registerMBean(newHistogram, objectName(metric, destination));
+        } catch (Exception e) {
+            // Still usable through getHistogram(), just not visible over JMX.
+        }
+
+        return newHistogram;
+    }
+
+    /**
+     * Remove every histogram from JMX.
+     */
+    public void unregisterAll() {
+
+        for (String key : histograms.keySet()) {
+
+            int split = key.indexOf('|');
+
+            try {
+                mbeanServer.unregisterMBean(objectName(key.substring(0, split), key.substring(split + 1)));
+            } catch (Exception e) {
+                // Ignore.
+            }
+        }
+
+        histograms.clear();
+    }
+
+    private static ObjectName objectName(String metric, String destination) throws Exception {
+        // Destination names may contain characters that are special in object names, e.g. '?', ':' or ','.
+        return new ObjectName(DOMAIN + ":type=Metrics,metric=" + metric + ",destination=" + ObjectName.quote(destination));
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, HDR-style latency histogram: log-linear buckets (32 per power of two) give about 3% precision
+ * across the whole range of a long, in a fixed 15 KB (1920 counters). Also tracks errors and operations in flight.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    // 2^5 = 32 sub-buckets per power of two.
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below 64 take the first two groups of 32, then there's a group per exponent up to 62.
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile long startNanos = System.nanoTime();
+
+    /**
+     * Record one latency, in nanoseconds. Negative values count as 0.
+     */
+    public void record(long nanos) {
+
+        long value = Math.max(0, nanos);
+
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    public void adjustInFlight(int delta) {
+        inFlight.addAndGet(delta);
+    }
+
+    /**
+     * The latency (in nanoseconds) that [fraction] of recorded values are at or below, e.g. 0.99 for the p99.
+     * Accurate to within the width of one bucket (about 3%). Returns 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double fraction) {
+
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketMidpoint(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Average rate since creation or the last reset().
+     */
+    @Override
+    public double getRatePerSecond() {
+        double elapsedSecs = (System.nanoTime() - startNanos) / 1e9;
+        return elapsedSecs > 0 ? count.sum() / elapsedSecs : 0;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n > 0 ? sum.sum() / (double) n / 1000 : 0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return max.get() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return getValueAtPercentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Micros() {
+        return getValueAtPercentile(0.90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return getValueAtPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return getValueAtPercentile(0.999) / 1000.0;
+    }
+
+    /**
+     * Clear everything except the in-flight count.
+     */
+    @Override
+    public void reset() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+
+        count.reset();
+        sum.reset();
+        max.reset();
+        errors.reset();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Values below 64 get a bucket each; above that, each power of two is split into 32 equal buckets.
+     */
+    static int bucketIndex(long value) {
+
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /**
+     * The value in the middle of the given bucket.
+     */
+    static long bucketMidpoint(int index) {
+
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = (index >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << (exponent - SUB_BUCKET_BITS);
+
+        return lowest + width / 2;
+    }
+}
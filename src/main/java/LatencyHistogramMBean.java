@@ -0,0 +1,29 @@
+/**
+ * JMX view of a LatencyHistogram. Latencies are reported in microseconds.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    long getInFlight();
+
+    double getRatePerSecond();
+
+    double getMeanMicros();
+
+    double getMaxMicros();
+
+    double getP50Micros();
+
+    double getP90Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    void reset();
+}
@@ -0,0 +1,32 @@
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Turns objects into BytesMessage bodies and back, for JmsConnector.send(obj) and consume(type).
+ * Codecs are shared between connectors and threads, so they must be thread-safe.
+ * Example usage: jmsConn.setCodec(new DataCodec()).send(user);
+ *
+ * JSON, Avro, Protobuf, Kryo etc. plug in by implementing this around the library of your choice.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public interface MessageCodec {
+
+    // Every encoded message carries its codec's name in this string property, so mismatches are caught on decode:
+    String CODEC_PROPERTY = "JmsConnectorCodec";
+
+    /**
+     * Short, unique name for the encoding, e.g. "java-serialization".
+     */
+    String getName();
+
+    /**
+     * Write [obj] into the body of [msg].
+     */
+    void encode(Object obj, BytesMessage msg) throws JMSException;
+
+    /**
+     * Read a [type] back out of the body of [msg].
+     */
+    <T> T decode(BytesMessage msg, Class<T> type) throws JMSException;
+}
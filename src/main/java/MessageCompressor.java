@@ -0,0 +1,29 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A compression algorithm for message payloads - see JmsConnector.setCompression().
+ * Compressors are shared between connectors and threads, so they must be thread-safe.
+ *
+ * DeflateCompressor ships with JmsConnector. LZ4, Zstd etc. plug in by implementing this around the library of
+ * your choice, and registering it on the consuming side with JmsConnector.registerCompressor().
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public interface MessageCompressor {
+
+    /**
+     * Short, unique name for the algorithm, e.g. "deflate". Sent along with each compressed message.
+     */
+    String getName();
+
+    /**
+     * Compress [length] bytes of [data], starting at [offset], into [out].
+     */
+    void compress(byte[] data, int offset, int length, OutputStream out) throws IOException;
+
+    /**
+     * Decompress [length] bytes of [data], starting at [offset], into [out].
+     */
+    void decompress(byte[] data, int offset, int length, OutputStream out) throws IOException;
+}
@@ -0,0 +1,216 @@
+import org.apache.activemq.ActiveMQConnection;
+
+import javax.jms.Connection;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A JMS connection owned by JmsConnectionPool and shared by every JmsConnector that borrows it.
+ * Connectors never close this directly - they hand it back via JmsConnectionPool.release().
+ * Idle sessions (and their producers) are cached here per acknowledge mode, so short-lived connectors
+ * don't pay for session / producer creation round trips.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class PooledConnection implements ExceptionListener {
+
+    private final JmsConnectionPool pool;
+    private final String key;
+    private final Connection connection;
+
+    // Idle sessions, keyed by ack mode (Session.SESSION_TRANSACTED for transacted sessions).
+    // Most recently released first, so hot sessions keep getting reused.
+    private final Map<Integer, Deque<CachedSession>> idleSessions = new HashMap<>();
+
+    // Guarded by the owning pool:
+    int refCount;
+    long lastReleasedMillis;
+
+    // Set by the JMS provider thread when the connection dies.
+    private volatile boolean broken;
+
+    // Told when the connection dies, e.g. listener containers that need to reconnect.
+    private final List<ExceptionListener> failureListeners = new CopyOnWriteArrayList<>();
+
+    // Shared by every request() made over this connection, created on first use. Guarded by replyQueueLock.
+    private JmsReplyQueue replyQueue;
+    private final Object replyQueueLock = new Object();
+
+    PooledConnection(JmsConnectionPool pool, String key, Connection connection) throws JMSException {
+        this.pool = pool;
+        this.key = key;
+        this.connection = connection;
+        this.lastReleasedMillis = System.currentTimeMillis();
+        connection.setExceptionListener(this);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Borrow an idle session with the given mode, or create one.
+     * Must be handed back via releaseSession().
+     */
+    public CachedSession borrowSession(boolean transacted, int ackMode) throws JMSException {
+
+        int mode = transacted ? Session.SESSION_TRANSACTED : ackMode;
+
+        synchronized (idleSessions) {
+            Deque<CachedSession> idle = idleSessions.get(mode);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.pop();
+            }
+        }
+
+        Session session = connection.createSession(transacted, ackMode);
+        return new CachedSession(session, transacted, ackMode, pool.getMaxCachedProducers());
+    }
+
+    /**
+     * Return a borrowed session to the idle cache. The caller must already have closed any consumers
+     * it created on the session. Sessions that can't be cleanly reset, or don't fit in the cache, are closed.
+     */
+    public void releaseSession(CachedSession cached) {
+
+        if (!isHealthy()) {
+            cached.closeQuietly();
+            return;
+        }
+
+        try {
+            cached.reset();
+        } catch (Exception e) {
+            cached.closeQuietly();
+            return;
+        }
+
+        int mode = cached.isTransacted() ? Session.SESSION_TRANSACTED : cached.getAckMode();
+
+        synchronized (idleSessions) {
+
+            Deque<CachedSession> idle = idleSessions.get(mode);
+
+            if (idle == null) {
+                idle = new ArrayDeque<>();
+                idleSessions.put(mode, idle);
+            }
+
+            if (idle.size() < pool.getMaxIdleSessions()) {
+                idle.push(cached);
+                return;
+            }
+        }
+
+        cached.closeQuietly();
+    }
+
+    /**
+     * The temporary queue for replies to requests made over this connection, created on first use.
+     */
+    public JmsReplyQueue getReplyQueue() throws JMSException {
+
+        synchronized (replyQueueLock) {
+
+            if (replyQueue == null) {
+                replyQueue = new JmsReplyQueue(connection);
+            }
+
+            return replyQueue;
+        }
+    }
+
+    /**
+     * Called by the provider when the connection fails. Broken connections are never handed out again.
+     */
+    @Override
+    public void onException(JMSException e) {
+
+        broken = true;
+
+        // The temporary reply queue died with the connection, so no replies are coming.
+        synchronized (replyQueueLock) {
+            if (replyQueue != null) {
+                replyQueue.failAll(e);
+            }
+        }
+
+        for (ExceptionListener listener : failureListeners) {
+            try {
+                listener.onException(e);
+            } catch (Exception ignored) {
+                // One bad listener shouldn't keep the others from hearing about it.
+            }
+        }
+    }
+
+    /**
+     * Be told (on the provider's thread) when this connection fails.
+     */
+    public void addFailureListener(ExceptionListener listener) {
+        failureListeners.add(listener);
+    }
+
+    public void removeFailureListener(ExceptionListener listener) {
+        failureListeners.remove(listener);
+    }
+
+    /**
+     * Mark this connection as unusable, e.g. after a send failed in a way that points at the transport.
+     */
+    public void markBroken() {
+        broken = true;
+    }
+
+    /**
+     * Cheap health check - no broker round trip.
+     */
+    public boolean isHealthy() {
+
+        if (broken) {
+            return false;
+        }
+
+        if (connection instanceof ActiveMQConnection) {
+            ActiveMQConnection amqConn = (ActiveMQConnection) connection;
+            return !amqConn.isClosed() && !amqConn.isTransportFailed();
+        }
+
+        return true;
+    }
+
+    /**
+     * Quietly close the underlying connection.
+     */
+    void closeQuietly() {
+
+        // Closing the connection closes its sessions too, we just need to forget them.
+        synchronized (idleSessions) {
+            idleSessions.clear();
+        }
+
+        synchronized (replyQueueLock) {
+            if (replyQueue != null) {
+                replyQueue.closeQuietly();
+                replyQueue = null;
+            }
+        }
+
+        try {
+            connection.close();
+        } catch (Exception e) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Encodes java.io.Serializable objects with Java serialization. Works for anything Serializable, with no extra
+ * code - but it's neither the fastest nor the most compact encoding, and both ends need the same classes.
+ * This is JmsConnector's default codec.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class SerializableCodec implements MessageCodec {
+
+    @Override
+    public String getName() {
+        return "java-serialization";
+    }
+
+    @Override
+    public void encode(Object obj, BytesMessage msg) throws JMSException {
+
+        CodecBuffers.Output out = CodecBuffers.output();
+
+        try (ObjectOutputStream objOut = new ObjectOutputStream(out)) {
+            objOut.writeObject(obj);
+        } catch (IOException e) {
+            throw CodecBuffers.formatException("Couldn't serialize " + obj.getClass().getName(), e);
+        }
+
+        out.writeTo(msg);
+        CodecBuffers.release(out);
+    }
+
+    @Override
+    public <T> T decode(BytesMessage msg, Class<T> type) throws JMSException {
+
+        try (ObjectInputStream objIn = new ObjectInputStream(CodecBuffers.input(msg))) {
+            return type.cast(objIn.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            throw CodecBuffers.formatException("Couldn't deserialize a " + type.getName(), e);
+        }
+    }
+}
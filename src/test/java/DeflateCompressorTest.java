@@ -0,0 +1,87 @@
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Unit tests for DeflateCompressor - no broker needed.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class DeflateCompressorTest {
+
+    private static byte[] repetitiveJson() {
+
+        StringBuilder json = new StringBuilder("[");
+
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"name\":\"luke\",\"age\":29,\"id\":").append(i).append("},");
+        }
+
+        return json.append("{}]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Repeated compress / decompress calls on one thread reuse the same Deflater / Inflater.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        DeflateCompressor compressor = new DeflateCompressor();
+        byte[] data = repetitiveJson();
+
+        for (int i = 0; i < 3; i++) {
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            compressor.compress(data, 0, data.length, compressed);
+            Assert.assertTrue(compressed.size() < data.length / 5, "Compressed to " + compressed.size());
+
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            compressor.decompress(compressed.toByteArray(), 0, compressed.size(), decompressed);
+            Assert.assertTrue(Arrays.equals(decompressed.toByteArray(), data));
+        }
+    }
+
+    /**
+     * Every level round-trips, including compressors sharing a level's Deflater on the same thread.
+     */
+    @Test
+    public void testLevels() throws IOException {
+
+        byte[] data = repetitiveJson();
+
+        for (int level = -1; level <= 9; level++) {
+            for (int i = 0; i < 2; i++) {
+
+                DeflateCompressor compressor = new DeflateCompressor(level);
+
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                compressor.compress(data, 0, data.length, compressed);
+
+                ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+                compressor.decompress(compressed.toByteArray(), 0, compressed.size(), decompressed);
+                Assert.assertTrue(Arrays.equals(decompressed.toByteArray(), data));
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBadLevel() {
+        new DeflateCompressor(10);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncated() throws IOException {
+
+        DeflateCompressor compressor = new DeflateCompressor();
+        byte[] data = repetitiveJson();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressor.compress(data, 0, data.length, compressed);
+
+        compressor.decompress(compressed.toByteArray(), 0, compressed.size() / 2, new ByteArrayOutputStream());
+    }
+}
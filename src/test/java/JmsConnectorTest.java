@@ -0,0 +1,64 @@
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.jms.MessageFormatException;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for JmsConnector helpers - no broker needed.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsConnectorTest {
+
+    /**
+     * Batch sizes are measured in encoded bytes, not characters.
+     */
+    @Test
+    public void testUtf8Length() {
+
+        String[] texts = { "", "luke", "caf\u00e9", "\u20ac100", "\ud83d\ude00 smile", "lone \ud83d", "lone \ude00 too" };
+
+        for (String text : texts) {
+            Assert.assertEquals(JmsConnector.utf8Length(text), text.getBytes(StandardCharsets.UTF_8).length);
+        }
+
+        Assert.assertEquals(JmsConnector.utf8Length(null), 0);
+    }
+
+    /**
+     * Bad batch sizes and waits are rejected before touching the broker.
+     */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testConsumeBatchNoMessages() throws Exception {
+        new JmsConnector("tcp://localhost:61616", "users").consumeBatch(0, 1000);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testConsumeBatchNegativeWait() throws Exception {
+        new JmsConnector("tcp://localhost:61616", "users").consumeBatch(10, -1);
+    }
+
+    /**
+     * A small message that inflates to far more than it claims (a zip bomb) is refused, not inflated.
+     */
+    @Test
+    public void testDecompressLimit() throws Exception {
+
+        byte[] zeros = new byte[10 * 1024 * 1024];
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new DeflateCompressor().compress(zeros, 0, zeros.length, compressed);
+        byte[] bomb = compressed.toByteArray();
+
+        Assert.assertEquals(JmsConnector.decompress(new DeflateCompressor(), bomb, bomb.length, zeros.length).size(),
+            zeros.length);
+
+        try {
+            JmsConnector.decompress(new DeflateCompressor(), bomb, bomb.length, 1024 * 1024);
+            Assert.fail("Inflated past the limit.");
+        } catch (MessageFormatException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.naming.Context;
+import javax.naming.spi.InitialContextFactory;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for JmsJndiCache - no broker or jndi.properties needed.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsJndiCacheTest {
+
+    private static final AtomicInteger LOOKUPS = new AtomicInteger();
+
+    /**
+     * A JNDI context that binds every name to "[name] #[lookup count]".
+     */
+    public static class CountingContextFactory implements InitialContextFactory {
+
+        @Override
+        public Context getInitialContext(Hashtable<?, ?> environment) {
+            return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Context.class },
+                (proxy, method, args) -> method.getName().equals("lookup")
+                    ? args[0] + " #" + LOOKUPS.incrementAndGet()
+                    : null);
+        }
+    }
+
+    private static JmsJndiCache newCache() {
+        Hashtable<String, String> environment = new Hashtable<>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, CountingContextFactory.class.getName());
+        return new JmsJndiCache(environment);
+    }
+
+    /**
+     * Only the first lookup of each name goes to JNDI, until it's invalidated.
+     */
+    @Test
+    public void testCaching() throws Exception {
+
+        JmsJndiCache cache = newCache();
+        LOOKUPS.set(0);
+
+        Assert.assertEquals(cache.lookup("connectionFactory"), "connectionFactory #1");
+        Assert.assertEquals(cache.lookup("connectionFactory"), "connectionFactory #1");
+        Assert.assertEquals(cache.lookup("MyQueue"), "MyQueue #2");
+
+        cache.invalidate("connectionFactory");
+        Assert.assertEquals(cache.lookup("connectionFactory"), "connectionFactory #3");
+        Assert.assertEquals(cache.lookup("MyQueue"), "MyQueue #2");
+
+        cache.invalidateAll();
+        Assert.assertEquals(cache.lookup("MyQueue"), "MyQueue #4");
+    }
+
+    /**
+     * Expired entries are looked up again.
+     */
+    @Test
+    public void testTtl() throws Exception {
+
+        JmsJndiCache cache = newCache().setTtlMillis(50);
+        LOOKUPS.set(0);
+
+        Assert.assertEquals(cache.lookup("MyQueue"), "MyQueue #1");
+        Assert.assertEquals(cache.lookup("MyQueue"), "MyQueue #1");
+
+        Thread.sleep(100);
+        Assert.assertEquals(cache.lookup("MyQueue"), "MyQueue #2");
+    }
+}
@@ -0,0 +1,103 @@
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Unit tests for JmsMapMessage - no broker needed.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsMapMessageTest {
+
+    /**
+     * Every type comes back out as it went in, in order.
+     */
+    @Test
+    public void testTypes() {
+
+        byte[] bytes = { 1, 2, 3 };
+
+        JmsMapMessage map = JmsMapMessage.builder()
+            .addString("string", "luke")
+            .addInt("int", 29)
+            .addLong("long", Long.MAX_VALUE)
+            .addDouble("double", -1.5)
+            .addBoolean("boolean", true)
+            .addBytes("bytes", bytes)
+            .addShort("short", (short) -7)
+            .addFloat("float", 0.25f)
+            .addChar("char", 'x')
+            .addByte("byte", (byte) -128)
+            .addObject("object", 42L)
+            .build();
+
+        // The builder copied the bytes.
+        bytes[0] = 99;
+
+        Map<String, Object> entries = map.getEntries();
+
+        Assert.assertEquals(entries.keySet().toArray(), new Object[] {
+            "string", "int", "long", "double", "boolean", "bytes", "short", "float", "char", "byte", "object" });
+
+        Assert.assertEquals(entries.get("string"), "luke");
+        Assert.assertEquals(entries.get("int"), 29);
+        Assert.assertEquals(entries.get("long"), Long.MAX_VALUE);
+        Assert.assertEquals(entries.get("double"), -1.5);
+        Assert.assertEquals(entries.get("boolean"), true);
+        Assert.assertTrue(Arrays.equals((byte[]) entries.get("bytes"), new byte[] { 1, 2, 3 }));
+        Assert.assertEquals(entries.get("short"), (short) -7);
+        Assert.assertEquals(entries.get("float"), 0.25f);
+        Assert.assertEquals(entries.get("char"), 'x');
+        Assert.assertEquals(entries.get("byte"), (byte) -128);
+        Assert.assertEquals(entries.get("object"), 42L);
+    }
+
+    /**
+     * Like a map, a key added twice keeps its first position and its last value.
+     */
+    @Test
+    public void testDuplicateKeys() {
+
+        JmsMapMessage map = JmsMapMessage.builder()
+            .addString("name", "luke")
+            .addInt("age", 29)
+            .addString("name", "leia")
+            .build();
+
+        Assert.assertEquals(map.size(), 2);
+        Assert.assertEquals(map.getEntries().keySet().toArray(), new Object[] { "name", "age" });
+        Assert.assertEquals(map.getEntries().get("name"), "leia");
+        Assert.assertEquals(map.getEntries().get("age"), 29);
+    }
+
+    /**
+     * Same as above, past the point where the builder indexes its keys - and a replaced value may change type.
+     */
+    @Test
+    public void testDuplicateKeysIndexed() {
+
+        JmsMapMessage.Builder builder = JmsMapMessage.builder();
+
+        for (int i = 0; i < 100; i++) {
+            builder.addInt("key" + i, i);
+        }
+
+        builder.addString("key0", "first").addLong("key99", -1L).addInt("key100", 100);
+        JmsMapMessage map = builder.build();
+
+        Assert.assertEquals(map.size(), 101);
+        Assert.assertEquals(map.getEntries().get("key0"), "first");
+        Assert.assertEquals(map.getEntries().get("key50"), 50);
+        Assert.assertEquals(map.getEntries().get("key99"), -1L);
+        Assert.assertEquals(map.getEntries().keySet().iterator().next(), "key0");
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testBuildOnce() {
+        JmsMapMessage.Builder builder = JmsMapMessage.builder().addInt("age", 29);
+        builder.build();
+        builder.addInt("age", 30);
+    }
+}
@@ -0,0 +1,166 @@
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for JmsOutbox - no broker needed, the forwarder just records what it's given.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsOutboxTest {
+
+    /**
+     * Stands in for the broker: fails while [down] is set, otherwise keeps what it's sent.
+     */
+    private static class RecordingConnector extends JmsConnector {
+
+        final List<String> forwarded = Collections.synchronizedList(new ArrayList<>());
+        final List<JmsOutbox.Record> records = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean down;
+
+        RecordingConnector() {
+            super("tcp://localhost:61616", "users");
+        }
+
+        @Override
+        void forward(List<JmsOutbox.Record> records) throws JMSException {
+
+            if (down) {
+                throw new JMSException("Broker is down");
+            }
+
+            for (JmsOutbox.Record record : records) {
+                forwarded.add(record.text);
+                this.records.add(record);
+            }
+        }
+    }
+
+    private static void waitForPending(JmsOutbox outbox, int pending) throws InterruptedException {
+        for (int i = 0; i < 500 && outbox.getPendingCount() != pending; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(outbox.getPendingCount(), pending);
+    }
+
+    /**
+     * Records are forwarded in order, across segments, once the broker comes back.
+     */
+    @Test
+    public void testForward() throws Exception {
+
+        File dir = Files.createTempDirectory("outbox").toFile();
+        RecordingConnector forwarder = new RecordingConnector();
+        forwarder.down = true;
+
+        JmsOutbox outbox = new JmsOutbox(dir, forwarder).setSegmentSize(256);
+
+        try {
+
+            for (int i = 0; i < 20; i++) {
+                outbox.append("Message " + i, DeliveryMode.PERSISTENT, 4, 0);
+            }
+
+            outbox.append(null, DeliveryMode.PERSISTENT, 4, 0);
+            Assert.assertEquals(outbox.getPendingCount(), 21);
+
+            forwarder.down = false;
+            waitForPending(outbox, 0);
+
+            Assert.assertEquals(forwarder.forwarded.size(), 21);
+            Assert.assertEquals(forwarder.forwarded.get(0), "Message 0");
+            Assert.assertEquals(forwarder.forwarded.get(19), "Message 19");
+            Assert.assertNull(forwarder.forwarded.get(20));
+
+            // Forwarded segments are deleted, except the one still being appended to.
+            Assert.assertEquals(dir.listFiles().length, 1);
+
+        } finally {
+            outbox.close();
+        }
+    }
+
+    /**
+     * Records that weren't forwarded are picked up again by the next outbox on the same directory.
+     */
+    @Test
+    public void testRecover() throws Exception {
+
+        File dir = Files.createTempDirectory("outbox").toFile();
+        RecordingConnector down = new RecordingConnector();
+        down.down = true;
+
+        JmsOutbox outbox = new JmsOutbox(dir, down);
+        outbox.append("Survives a restart", DeliveryMode.PERSISTENT, 4, 0);
+        outbox.append("Expired on the way", DeliveryMode.PERSISTENT, 4, 1);
+        outbox.close();
+
+        Thread.sleep(10);
+
+        RecordingConnector up = new RecordingConnector();
+        JmsOutbox reopened = new JmsOutbox(dir, up);
+
+        try {
+            waitForPending(reopened, 0);
+            Assert.assertEquals(up.forwarded, Collections.singletonList("Survives a restart"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Message properties and the append time survive the trip through the outbox, with or without text.
+     */
+    @Test
+    public void testProperties() throws Exception {
+
+        File dir = Files.createTempDirectory("outbox").toFile();
+        RecordingConnector forwarder = new RecordingConnector();
+
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("tenant", "acme");
+        properties.put("retry", true);
+        properties.put("shard", (byte) 3);
+        properties.put("region", (short) 44);
+        properties.put("attempt", 2);
+        properties.put("orderId", 1234567890123L);
+        properties.put("weight", 0.5f);
+        properties.put("score", -1.25);
+
+        long before = System.currentTimeMillis();
+        JmsOutbox outbox = new JmsOutbox(dir, forwarder);
+
+        try {
+
+            outbox.append("Tagged caf\u00e9", DeliveryMode.PERSISTENT, 4, 0, properties);
+            outbox.append(null, DeliveryMode.PERSISTENT, 4, 0, properties);
+            outbox.append("Untagged", DeliveryMode.PERSISTENT, 4, 0);
+            waitForPending(outbox, 0);
+
+            Assert.assertEquals(forwarder.forwarded.size(), 3);
+
+            JmsOutbox.Record tagged = forwarder.records.get(0);
+            Assert.assertEquals(tagged.text, "Tagged caf\u00e9");
+            Assert.assertEquals(tagged.properties, properties);
+            Assert.assertTrue(tagged.appendedMillis >= before);
+
+            Assert.assertNull(forwarder.records.get(1).text);
+            Assert.assertEquals(forwarder.records.get(1).properties, properties);
+
+            Assert.assertEquals(forwarder.records.get(2).text, "Untagged");
+            Assert.assertTrue(forwarder.records.get(2).properties.isEmpty());
+
+        } finally {
+            outbox.close();
+        }
+    }
+}
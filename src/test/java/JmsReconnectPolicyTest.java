@@ -0,0 +1,44 @@
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for JmsReconnectPolicy - no broker needed.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class JmsReconnectPolicyTest {
+
+    /**
+     * Without jitter, delays double up to the max.
+     */
+    @Test
+    public void testBackoff() {
+
+        JmsReconnectPolicy policy = new JmsReconnectPolicy()
+            .setInitialDelayMillis(100)
+            .setMaxDelayMillis(1000)
+            .setJitter(0);
+
+        Assert.assertEquals(policy.delayMillis(0), 100);
+        Assert.assertEquals(policy.delayMillis(1), 200);
+        Assert.assertEquals(policy.delayMillis(3), 800);
+        Assert.assertEquals(policy.delayMillis(4), 1000);
+        Assert.assertEquals(policy.delayMillis(1000), 1000);
+    }
+
+    /**
+     * Jitter only ever shortens the delay, by up to the jitter fraction.
+     */
+    @Test
+    public void testJitter() {
+
+        JmsReconnectPolicy policy = new JmsReconnectPolicy()
+            .setInitialDelayMillis(1000)
+            .setJitter(0.5);
+
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.delayMillis(0);
+            Assert.assertTrue(delay >= 500 && delay <= 1000, "Delay out of range: " + delay);
+        }
+    }
+}
@@ -1,9 +1,26 @@
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import javax.jms.BytesMessage;
+import javax.jms.DeliveryMode;
 import javax.jms.MapMessage;
 import javax.jms.Message;
+import javax.jms.MessageListener;
 import javax.jms.TextMessage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * Example usages of JmsConnector.
@@ -86,4 +103,765 @@ public class JmsTest {
             jmsConn.close();
         }
     }
+
+    /**
+     * Example showing that open connectors share one pooled connection.
+     */
+    @Test
+    public void testConnectionPool() {
+
+        JmsConnector jmsConn1 = new JmsConnector("tcp://localhost:61616", "users");
+        JmsConnector jmsConn2 = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            jmsConn1.sendTextMessage("First connector");
+            jmsConn2.sendTextMessage("Second connector");
+
+            // Both connectors borrowed the same physical connection.
+            Assert.assertEquals(JmsConnectionPool.getInstance().size("tcp://localhost:61616"), 1);
+
+            jmsConn1.consume(5);
+            jmsConn2.consume(5);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn1.close();
+            jmsConn2.close();
+        }
+    }
+
+    /**
+     * Example of sending many messages in a few transacted batches.
+     */
+    @Test
+    public void testBatchSend() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users")
+            .setMaxBatchSize(100);
+
+        try {
+
+            List<String> texts = new ArrayList<>();
+            for (int i = 0; i < 250; i++) {
+                texts.add("Batch message " + i);
+            }
+
+            // Sent as 3 transactions: 100 + 100 + 50.
+            Assert.assertEquals(jmsConn.sendTextMessages(texts), 250);
+
+            for (int i = 0; i < 250; i++) {
+                Assert.assertTrue(jmsConn.consume(5) instanceof TextMessage);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of draining the queue in chunks, acknowledging each chunk at once.
+     */
+    @Test
+    public void testBatchConsume() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            for (int i = 0; i < 10; i++) {
+                jmsConn.sendTextMessage("Chunk message " + i);
+            }
+
+            // Take up to 100 messages, waiting at most 2 seconds for them.
+            List<Message> batch = jmsConn.consumeBatch(100, 2000);
+            Assert.assertEquals(batch.size(), 10);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of push-based consumption with several sessions handling messages in parallel.
+     */
+    @Test
+    public void testListen() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            final CountDownLatch received = new CountDownLatch(20);
+
+            // The handler runs on 4 threads at once, so it must be thread-safe.
+            jmsConn.listen(new MessageListener() {
+                @Override
+                public void onMessage(Message msg) {
+                    received.countDown();
+                }
+            }, 4);
+
+            for (int i = 0; i < 20; i++) {
+                jmsConn.sendTextMessage("Pushed message " + i);
+            }
+
+            Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // Stops the listeners, waiting for in-flight messages to finish.
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of consuming from many queues at once - each queue gets its own (virtual, on Java 21+) thread.
+     */
+    @Test
+    public void testConsumerRunner() {
+
+        JmsConsumerRunner runner = new JmsConsumerRunner();
+
+        try {
+
+            final CountDownLatch received = new CountDownLatch(3);
+
+            MessageListener handler = new MessageListener() {
+                @Override
+                public void onMessage(Message msg) {
+                    received.countDown();
+                }
+            };
+
+            // The runner owns these connectors and closes them when it's closed.
+            runner.submit(new JmsConnector("tcp://localhost:61616", "users"), handler);
+            runner.submit(new JmsConnector("tcp://localhost:61616", "orders"), handler);
+            runner.submit(new JmsConnector("tcp://localhost:61616", "invoices"), handler);
+
+            for (String queue : new String[] { "users", "orders", "invoices" }) {
+                JmsConnector sender = new JmsConnector("tcp://localhost:61616", queue);
+                try {
+                    sender.sendTextMessage("For " + queue);
+                } finally {
+                    sender.close();
+                }
+            }
+
+            Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            runner.close();
+        }
+    }
+
+    /**
+     * Example of sending without waiting for the broker.
+     */
+    @Test
+    public void testAsyncSend() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            CompletableFuture<Void> textSent = jmsConn.sendTextMessageAsync("This is an async text message!!");
+
+            CompletableFuture<Void> mapSent = jmsConn.startMapMessage()
+                .addMapString("name", "luke")
+                .addMapInt("age", 29)
+                .sendMapMessageAsync();
+
+            // Per-message callbacks:
+            textSent.whenComplete((ok, error) -> {
+                if (error != null) {
+                    error.printStackTrace();
+                }
+            });
+
+            CompletableFuture.allOf(textSent, mapSent).get(5, TimeUnit.SECONDS);
+
+            Assert.assertTrue(jmsConn.consume(5) instanceof TextMessage);
+            Assert.assertTrue(jmsConn.consume(5) instanceof MapMessage);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // Waits for any sends still pending.
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of tuning delivery options - per connector, and per send.
+     */
+    @Test
+    public void testDeliveryOptions() {
+
+        // Telemetry: skip the broker journal, and drop anything nobody reads within 10 seconds.
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "telemetry")
+            .setDeliveryMode(DeliveryMode.NON_PERSISTENT)
+            .setTimeToLive(10000);
+
+        try {
+
+            jmsConn.sendTextMessage("cpu=42");
+
+            // This one is important - persistent, high priority, never expires.
+            jmsConn.sendTextMessage("alert: disk full", DeliveryMode.PERSISTENT, 9, 0);
+
+            // Queues aren't ordered by priority unless the broker enables prioritizedMessages, so don't rely on it.
+            for (int i = 0; i < 2; i++) {
+
+                TextMessage msg = (TextMessage) jmsConn.consume(5);
+
+                if (msg.getText().equals("cpu=42")) {
+                    Assert.assertEquals(msg.getJMSDeliveryMode(), DeliveryMode.NON_PERSISTENT);
+                    Assert.assertEquals(msg.getJMSPriority(), Message.DEFAULT_PRIORITY);
+                    Assert.assertTrue(msg.getJMSExpiration() > 0);
+                } else {
+                    Assert.assertEquals(msg.getText(), "alert: disk full");
+                    Assert.assertEquals(msg.getJMSDeliveryMode(), DeliveryMode.PERSISTENT);
+                    Assert.assertEquals(msg.getJMSPriority(), 9);
+                    Assert.assertEquals(msg.getJMSExpiration(), 0);
+                }
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of sharing one connector between many producer threads.
+     */
+    @Test
+    public void testConcurrentProducers() {
+
+        // Safe to share - sends are spread over 4 sessions.
+        final ConcurrentJmsConnector jmsConn = new ConcurrentJmsConnector("tcp://localhost:61616", "users", 4);
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+
+        try {
+
+            // Immutable, so it can be built once and sent from any thread.
+            final JmsMapMessage user = JmsMapMessage.builder()
+                .addString("name", "luke")
+                .addInt("age", 29)
+                .build();
+
+            for (int i = 0; i < 100; i++) {
+                threads.execute(() -> {
+                    try {
+                        jmsConn.sendTextMessage("Sent from " + Thread.currentThread().getName());
+                        jmsConn.sendMapMessage(user);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+
+            threads.shutdown();
+            Assert.assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of tuning how many messages the broker pushes to a consumer ahead of time.
+     */
+    @Test
+    public void testPrefetchTuning() {
+
+        // A slow consumer: only hold 10 messages at a time, so other consumers get the rest.
+        JmsConnector slowConn = new JmsConnector("tcp://localhost:61616", "users")
+            .setPrefetchSize(10);
+
+        // Or let the connector work it out - keep about 500ms of work buffered, never more than 1000 messages.
+        JmsConnector adaptiveConn = new JmsConnector("tcp://localhost:61616", "users")
+            .setAdaptivePrefetch(500, 1000);
+
+        try {
+
+            slowConn.sendTextMessage("For the slow consumer");
+            Assert.assertTrue(slowConn.consume(5) instanceof TextMessage);
+
+            adaptiveConn.sendTextMessage("For the adaptive consumer");
+            Assert.assertTrue(adaptiveConn.consume(5) instanceof TextMessage);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            slowConn.close();
+            adaptiveConn.close();
+        }
+    }
+
+    /**
+     * Example of publishing send / receive timings to JMX, per queue.
+     */
+    @Test
+    public void testMetrics() {
+
+        JmxJmsMetrics metrics = new JmxJmsMetrics();
+
+        // Or JmsConnector.setDefaultMetrics(metrics) for every connector.
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users")
+            .setMetrics(metrics);
+
+        try {
+
+            jmsConn.sendTextMessage("Measure me");
+            jmsConn.consume(5);
+
+            // Also visible in jconsole as JmsConnector:type=Metrics,metric=send,destination="users"
+            Assert.assertEquals(metrics.getHistogram(JmsMetrics.SEND, "users").getCount(), 1);
+
+            // How long the message sat in the queue, from the producer's send stamp.
+            Assert.assertEquals(metrics.getHistogram(JmsMetrics.END_TO_END, "users").getCount(), 1);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+            metrics.unregisterAll();
+        }
+    }
+
+    /**
+     * Example of riding out broker restarts, with backoff between retries and failover between brokers.
+     */
+    @Test
+    public void testReconnect() {
+
+        // Ride out broker restarts: retry with backoff (100ms, 200ms, 400ms... plus jitter), alternating brokers.
+        // While the brokers are down, up to 1000 sends are held in memory instead of blocking.
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616,tcp://localhost:61617", "users")
+            .setReconnectPolicy(new JmsReconnectPolicy().setMaxAttempts(20))
+            .setOutageBufferSize(1000);
+
+        try {
+
+            jmsConn.sendTextMessage("Sent even if the broker just bounced");
+            Assert.assertTrue(jmsConn.consume(5) instanceof TextMessage);
+            Assert.assertEquals(jmsConn.getBufferedSendCount(), 0);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of keeping sends on local disk while the broker is down, and forwarding them once it's back.
+     */
+    @Test
+    public void testOutbox() {
+
+        JmsOutbox outbox = null;
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            // While the broker is down, sends are kept on local disk and forwarded once it's back.
+            File outboxDir = new File(System.getProperty("java.io.tmpdir"), "jms-outbox-users");
+            outbox = new JmsOutbox(outboxDir, new JmsConnector("tcp://localhost:61616", "users"));
+            jmsConn.setOutbox(outbox);
+
+            jmsConn.sendTextMessage("Sent now, or as soon as the broker is back");
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+            if (outbox != null) {
+                outbox.close();
+            }
+        }
+    }
+
+    /**
+     * Example of building a typed map message without a session, and sending it.
+     */
+    @Test
+    public void testTypedMapMessage() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            // Collected without touching the broker, then copied into a MapMessage once, at send time.
+            jmsConn.sendMapMessage(JmsMapMessage.builder()
+                .addString("name", "luke")
+                .addLong("id", 1234567890123L)
+                .addDouble("balance", 99.95)
+                .addBoolean("active", true)
+                .addBytes("avatar", new byte[] { 1, 2, 3 })
+                .build());
+
+            MapMessage msg = (MapMessage) jmsConn.consume(5);
+            Assert.assertEquals(msg.getLong("id"), 1234567890123L);
+            Assert.assertTrue(msg.getBoolean("active"));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of sending raw bytes, and reading them back a chunk at a time.
+     */
+    @Test
+    public void testBytes() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            // No base64 - the bytes go as they are.
+            jmsConn.sendBytes(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }));
+
+            // Read the body into a reused buffer, a chunk at a time.
+            BytesMessage msg = (BytesMessage) jmsConn.consume(5);
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            int total = 0;
+            int read;
+
+            while ((read = JmsConnector.readBytes(msg, buffer)) > 0) {
+                total += read;
+                buffer.clear();
+            }
+
+            Assert.assertEquals(total, 4);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of streaming a big file through the broker's blob store, rather than holding it in memory.
+     */
+    @Test
+    public void testStream() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users");
+
+        try {
+
+            // Needs a broker blob store, e.g. jms.blobTransferPolicy.uploadUrl=http://localhost:8161/fileserver/
+            File bigFile = File.createTempFile("payload", ".bin");
+            bigFile.deleteOnExit();
+            jmsConn.sendFile(bigFile);
+
+            try (InputStream in = JmsConnector.openStream(jmsConn.consume(5))) {
+                Assert.assertEquals(in.read(), -1);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * A domain object that writes its own fields - see DataCodec.
+     */
+    public static class User implements DataCodec.Writable {
+
+        String name;
+        int age;
+
+        public User() {
+        }
+
+        User(String name, int age) {
+            this.name = name;
+            this.age = age;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeUTF(name);
+            out.writeInt(age);
+        }
+
+        @Override
+        public void read(DataInput in) throws IOException {
+            name = in.readUTF();
+            age = in.readInt();
+        }
+    }
+
+    /**
+     * Example of sending and consuming objects through a codec.
+     */
+    @Test
+    public void testCodec() {
+
+        // The default codec is Java serialization; DataCodec is smaller and faster.
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users")
+            .setCodec(new DataCodec());
+
+        try {
+
+            jmsConn.send(new User("luke", 29));
+
+            User user = jmsConn.consume(User.class, 5);
+            Assert.assertEquals(user.name, "luke");
+            Assert.assertEquals(user.age, 29);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of compressing large message bodies.
+     */
+    @Test
+    public void testCompression() {
+
+        // Bodies of 1 KB or more are deflated. Consumers decompress automatically.
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "users")
+            .setCompression(new DeflateCompressor(), 1024);
+
+        try {
+
+            StringBuilder json = new StringBuilder("[");
+            for (int i = 0; i < 1000; i++) {
+                json.append("{\"name\":\"luke\",\"age\":29},");
+            }
+            json.append("{}]");
+
+            jmsConn.sendTextMessage(json.toString());
+
+            TextMessage msg = (TextMessage) jmsConn.consume(5);
+            Assert.assertEquals(msg.getText(), json.toString());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of request/reply - the client waits for the server's answer on a shared temporary queue.
+     */
+    @Test
+    public void testRequestReply() {
+
+        final JmsConnector server = new JmsConnector("tcp://localhost:61616", "users.lookup");
+        JmsConnector client = new JmsConnector("tcp://localhost:61616", "users.lookup");
+
+        try {
+
+            // Only the listener thread uses the server connector.
+            server.listen(new MessageListener() {
+                @Override
+                public void onMessage(Message msg) {
+                    try {
+                        server.reply(msg, "age of " + ((TextMessage) msg).getText() + ": 29");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, 1);
+
+            // Requests share one reply queue, so there can be many in flight.
+            List<CompletableFuture<Message>> replies = new ArrayList<>();
+
+            for (int i = 0; i < 10; i++) {
+                replies.add(client.request("luke", 5000));
+            }
+
+            for (CompletableFuture<Message> reply : replies) {
+                Assert.assertEquals(((TextMessage) reply.get()).getText(), "age of luke: 29");
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Example of a virtual topic, where each consumer group gets its own copy of every message.
+     */
+    @Test
+    public void testVirtualTopic() {
+
+        // One publish, and each consumer group gets its own copy. Consumers in a group share the group's copies.
+        JmsConnector publisher = new JmsConnector("tcp://localhost:61616", "VirtualTopic.Orders").asTopic();
+        JmsConnector billing = new JmsConnector("tcp://localhost:61616", "VirtualTopic.Orders")
+            .asTopic().setConsumerGroup("billing");
+        JmsConnector shipping = new JmsConnector("tcp://localhost:61616", "VirtualTopic.Orders")
+            .asTopic().setConsumerGroup("shipping");
+
+        try {
+
+            // Group queues are created when a group first consumes, so start consuming before publishing.
+            billing.consumeNoWait();
+            shipping.consumeNoWait();
+
+            publisher.sendTextMessage("order 1");
+
+            Assert.assertEquals(((TextMessage) billing.consume(5)).getText(), "order 1");
+            Assert.assertEquals(((TextMessage) shipping.consume(5)).getText(), "order 1");
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            publisher.close();
+            billing.close();
+            shipping.close();
+        }
+    }
+
+    /**
+     * Example of a durable subscription keeping messages published while the subscriber is offline.
+     */
+    @Test
+    public void testDurableSubscription() {
+
+        JmsConnector publisher = new JmsConnector("tcp://localhost:61616", "news").asTopic();
+        JmsConnector subscriber = new JmsConnector("tcp://localhost:61616", "news")
+            .asTopic().setDurableSubscription("JmsTest", "news-reader");
+
+        try {
+
+            // Subscribe, then go away.
+            subscriber.consumeNoWait();
+            subscriber.close();
+
+            // Kept for the subscription while nobody is consuming.
+            publisher.sendTextMessage("Published while offline");
+
+            Assert.assertEquals(((TextMessage) subscriber.consume(5)).getText(), "Published while offline");
+
+            subscriber.unsubscribe();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            publisher.close();
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Example of one connector talking to many queues.
+     */
+    @Test
+    public void testManyDestinations() {
+
+        // No queue of its own - one connection and session for every queue this service talks to.
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", null);
+
+        try {
+
+            jmsConn.sendTextMessageTo("users", "luke");
+            jmsConn.sendMapMessageTo("ages", JmsMapMessage.builder().addString("name", "luke").addInt("age", 29).build());
+
+            Assert.assertEquals(((TextMessage) jmsConn.consumeFrom("users", 5)).getText(), "luke");
+            Assert.assertEquals(((MapMessage) jmsConn.consumeFrom("ages", 5)).getInt("age"), 29);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
+
+    /**
+     * Example of letting the broker filter messages with a selector.
+     */
+    @Test
+    public void testSelector() {
+
+        // Selectors match on properties and headers, not the body, so tag each message with its tenant.
+        JmsConnector acme = new JmsConnector("tcp://localhost:61616", "tenants").setMessageProperty("tenant", "acme");
+        JmsConnector other = new JmsConnector("tcp://localhost:61616", "tenants").setMessageProperty("tenant", "other");
+        JmsConnector consumer = new JmsConnector("tcp://localhost:61616", "tenants");
+
+        try {
+
+            other.sendTextMessage("bob");
+            acme.sendTextMessage("luke");
+
+            // The broker only hands over acme's message - bob stays on the queue for someone else.
+            TextMessage msg = (TextMessage) consumer.consume("tenant = 'acme'", 5);
+            Assert.assertEquals(msg.getText(), "luke");
+            Assert.assertNull(consumer.consumeNoWait("tenant = 'acme'"));
+
+            Assert.assertEquals(((TextMessage) consumer.consume("tenant = 'other'", 5)).getText(), "bob");
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            acme.close();
+            other.close();
+            consumer.close();
+        }
+    }
+
+    /**
+     * Example of looking at messages without consuming them.
+     */
+    @Test
+    public void testBrowse() {
+
+        JmsConnector jmsConn = new JmsConnector("tcp://localhost:61616", "browsed")
+            .setMessageProperty("tenant", "acme");
+
+        try {
+
+            long before = jmsConn.countMessages();
+
+            for (int i = 0; i < 10; i++) {
+                jmsConn.sendTextMessage("Browsed message " + i);
+            }
+
+            Assert.assertEquals(jmsConn.countMessages(), before + 10);
+            Assert.assertEquals(jmsConn.countMessages("tenant = 'other'"), 0);
+
+            // Peek at the first few, without consuming them. Close the stream when done.
+            try (Stream<Message> messages = jmsConn.browse("tenant = 'acme'")) {
+                Assert.assertEquals(messages.limit(3).count(), 3);
+            }
+
+            // Still all there.
+            Assert.assertEquals(jmsConn.countMessages(), before + 10);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            jmsConn.close();
+        }
+    }
 }
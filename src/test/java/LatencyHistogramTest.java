@@ -0,0 +1,62 @@
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for LatencyHistogram - no broker needed.
+ *
+ * @author Luke Terheyden (terheyden@gmail.com)
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Every value maps to a bucket whose midpoint maps back to the same bucket.
+     */
+    @Test
+    public void testBuckets() {
+
+        for (long value : new long[] { 0, 1, 63, 64, 65, 127, 128, 1000, 123456789L, Long.MAX_VALUE }) {
+            int index = LatencyHistogram.bucketIndex(value);
+            Assert.assertEquals(LatencyHistogram.bucketIndex(LatencyHistogram.bucketMidpoint(index)), index);
+        }
+    }
+
+    /**
+     * Percentiles are accurate to within about 3%.
+     */
+    @Test
+    public void testPercentiles() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // 1ms .. 1000ms
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        Assert.assertEquals(histogram.getCount(), 1000);
+        Assert.assertEquals(histogram.getP50Micros(), 500000, 500000 * 0.03);
+        Assert.assertEquals(histogram.getP99Micros(), 990000, 990000 * 0.03);
+        Assert.assertEquals(histogram.getMaxMicros(), 1000000, 0);
+        Assert.assertEquals(histogram.getMeanMicros(), 500500, 1);
+
+        histogram.reset();
+        Assert.assertEquals(histogram.getCount(), 0);
+        Assert.assertEquals(histogram.getP99Micros(), 0, 0);
+    }
+
+    /**
+     * The biggest values fit too - recording must never throw on the send path.
+     */
+    @Test
+    public void testLargestValues() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(1L << 62);
+        histogram.record(Long.MAX_VALUE);
+
+        Assert.assertEquals(histogram.getCount(), 2);
+        Assert.assertEquals(histogram.getValueAtPercentile(1.0), Long.MAX_VALUE, Long.MAX_VALUE * 0.03);
+        Assert.assertEquals(histogram.getValueAtPercentile(0.5), 1L << 62, (1L << 62) * 0.03);
+    }
+}